@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Limits concurrent requests globally and per route, where a route is the
+ * first path segment.  Requests over the global limit wait in a bounded
+ * queue; requests which cannot be admitted receive 503 with Retry-After.
+ * When adaptive, the global limit follows an AIMD policy: it grows by one
+ * per limit's worth of requests faster than the target latency and shrinks
+ * by a tenth when a slower request completes, at most once per window of
+ * requests admitted since the previous decrease.  Routes which sleep on
+ * purpose do not contribute latency samples.  All limits default to zero
+ * which admits everything.
+ */
+public final class AdmissionHandler extends HandlerWrapper {
+    private static final double DECREASE_FACTOR = 0.9;
+    /** Routes whose latency reflects requested delays, not load. */
+    private static final Set<String> DELAYED_ROUTES = Set.of(
+            "/delay", "/drip", "/stream");
+
+    private final Object lock = new Object();
+    /** In-flight count per route; routes with no requests are removed. */
+    private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile int maxInFlight;
+    private volatile int maxInFlightPerRoute;
+    private volatile int maxQueued;
+    private volatile long maxQueueTimeMs;
+    private volatile boolean adaptive;
+    private volatile long targetLatencyMs = 100;
+    private volatile int retryAfterSeconds = 1;
+
+    // guarded by lock
+    private int inFlight;
+    private int queued;
+    private double limit;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    @Override
+    public void handle(String target, Request baseRequest,
+            HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        int globalLimit = maxInFlight;
+        int routeLimit = maxInFlightPerRoute;
+        if (globalLimit <= 0 && routeLimit <= 0) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        String route = getRoute(target);
+        if (routeLimit > 0 && !acquireRoute(route, routeLimit)) {
+            reject(baseRequest, response);
+            return;
+        }
+        if (globalLimit > 0 && !acquire(globalLimit)) {
+            if (routeLimit > 0) {
+                releaseRoute(route);
+            }
+            reject(baseRequest, response);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            async = request.isAsyncStarted();
+        } finally {
+            if (async) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        release(route, routeLimit > 0, globalLimit > 0,
+                                startNanos);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                release(route, routeLimit > 0, globalLimit > 0, startNanos);
+            }
+        }
+    }
+
+    private boolean acquireRoute(String route, int routeLimit) {
+        boolean[] admitted = new boolean[1];
+        routes.compute(route, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= routeLimit) {
+                return count;
+            }
+            admitted[0] = true;
+            return current + 1;
+        });
+        return admitted[0];
+    }
+
+    /** Remove routes whose count reaches zero so that the map stays small. */
+    private void releaseRoute(String route) {
+        routes.computeIfPresent(route,
+                (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private boolean acquire(int globalLimit) {
+        synchronized (lock) {
+            if (inFlight < currentLimit(globalLimit)) {
+                ++inFlight;
+                return true;
+            }
+            if (queued >= maxQueued || maxQueueTimeMs <= 0) {
+                return false;
+            }
+            ++queued;
+            try {
+                long deadline = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(maxQueueTimeMs);
+                while (inFlight >= currentLimit(globalLimit)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                ++inFlight;
+                return true;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                --queued;
+            }
+        }
+    }
+
+    private void release(String route, boolean perRoute, boolean global,
+            long startNanos) {
+        if (perRoute) {
+            releaseRoute(route);
+        }
+        if (!global) {
+            return;
+        }
+        long latencyNanos = System.nanoTime() - startNanos;
+        synchronized (lock) {
+            --inFlight;
+            if (adaptive && !DELAYED_ROUTES.contains(route)) {
+                double current = currentLimit(maxInFlight);
+                if (latencyNanos <= TimeUnit.MILLISECONDS.toNanos(
+                        targetLatencyMs)) {
+                    limit = Math.min(maxInFlight, current + 1 / current);
+                } else if (startNanos - lastDecreaseNanos > 0) {
+                    // requests admitted before the last decrease already
+                    // saw the old limit and must not shrink it again
+                    limit = Math.max(1, current * DECREASE_FACTOR);
+                    lastDecreaseNanos = System.nanoTime();
+                }
+            }
+            // waiters may time out, so wake all rather than risk a lost
+            // signal
+            lock.notifyAll();
+        }
+    }
+
+    /** Must hold lock. */
+    private double currentLimit(int globalLimit) {
+        if (!adaptive) {
+            return globalLimit;
+        }
+        if (limit <= 0 || limit > globalLimit) {
+            limit = globalLimit;
+        }
+        return limit;
+    }
+
+    private void reject(Request baseRequest, HttpServletResponse response) {
+        rejected.incrementAndGet();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        baseRequest.setHandled(true);
+    }
+
+    private static String getRoute(String target) {
+        int index = target.indexOf('/', 1);
+        return index == -1 ? target : target.substring(0, index);
+    }
+
+    /** Limit concurrent requests across all routes, or zero for no limit. */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Limit concurrent requests to each route, or zero for no limit. */
+    public void setMaxInFlightPerRoute(int maxInFlightPerRoute) {
+        this.maxInFlightPerRoute = maxInFlightPerRoute;
+    }
+
+    /**
+     * Let up to maxQueued requests over the global limit wait up to
+     * maxQueueTimeMs for a slot before rejecting them.
+     */
+    public void setQueue(int maxQueued, long maxQueueTimeMs) {
+        this.maxQueued = maxQueued;
+        this.maxQueueTimeMs = maxQueueTimeMs;
+    }
+
+    /**
+     * Adapt the global limit between one and maxInFlight so that requests
+     * complete within targetLatencyMs.
+     */
+    public void setAdaptive(boolean adaptive, long targetLatencyMs) {
+        synchronized (lock) {
+            this.adaptive = adaptive;
+            this.targetLatencyMs = targetLatencyMs;
+            this.limit = 0;
+        }
+    }
+
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /** Current global limit, which varies when adaptive. */
+    public double getLimit() {
+        synchronized (lock) {
+            return currentLimit(maxInFlight);
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    public int getQueued() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
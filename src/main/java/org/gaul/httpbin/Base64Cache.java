@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decoded base64 payloads keyed by their encoding, so
+ * that hot test vectors are not decoded on every request.  Callers must not
+ * modify the returned arrays.
+ */
+final class Base64Cache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    // guarded by this
+    private final Map<String, byte[]> entries =
+            new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+    private long bytes;
+
+    Base64Cache(int maxEntries, long maxBytes, int maxEntryBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Return the decoding of encoded.
+     *
+     * @throws IllegalArgumentException if encoded is not valid base64
+     */
+    byte[] decode(String encoded) {
+        synchronized (this) {
+            byte[] decoded = entries.get(encoded);
+            if (decoded != null) {
+                return decoded;
+            }
+        }
+        byte[] decoded = Base64.getDecoder().decode(encoded);
+        if (decoded.length + encoded.length() > maxEntryBytes) {
+            return decoded;
+        }
+        synchronized (this) {
+            byte[] old = entries.put(encoded, decoded);
+            if (old != null) {
+                bytes -= weight(encoded, old);
+            }
+            bytes += weight(encoded, decoded);
+            Iterator<Map.Entry<String, byte[]>> it =
+                    entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) &&
+                    it.hasNext()) {
+                Map.Entry<String, byte[]> entry = it.next();
+                bytes -= weight(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        return decoded;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static long weight(String encoded, byte[] decoded) {
+        return encoded.length() + decoded.length;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.io.Connection;
+
+/**
+ * Assigns each connection a stable identity and counts the requests it has
+ * carried.  Add as a bean to a connector so that new connections register
+ * themselves.
+ */
+final class ConnectionTracker implements Connection.Listener {
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Connection, Info> connections =
+            new ConcurrentHashMap<>();
+
+    @Override
+    public void onOpened(Connection connection) {
+        connections.put(connection, new Info(nextId.incrementAndGet()));
+    }
+
+    @Override
+    public void onClosed(Connection connection) {
+        connections.remove(connection);
+    }
+
+    /** Return the info for connection or null if it is not tracked. */
+    Info get(Connection connection) {
+        return connections.get(connection);
+    }
+
+    static final class Info {
+        private final long id;
+        private final AtomicLong requests = new AtomicLong();
+
+        Info(long id) {
+            this.id = id;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        /** Count a new request and return its 1-based sequence number. */
+        long onRequest() {
+            return requests.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Streams request bodies through their Content-Encoding.  Supports gzip
+ * and deflate, the latter either zlib-wrapped as RFC 9110 specifies or raw
+ * as some clients send it.  Inflaters are pooled since each holds native
+ * zlib state which is costly to allocate per request.
+ */
+final class ContentDecoder {
+    /** Thrown when a decoding layer inflates beyond MAX_DECODED_SIZE. */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Value for Accept-Encoding when rejecting an unsupported coding. */
+    static final String SUPPORTED_ENCODINGS = "gzip, deflate";
+    /** Bound on the output of each layer to defuse decompression bombs. */
+    static final long MAX_DECODED_SIZE = 16 * 1024 * 1024;
+
+    private static final int POOL_SIZE = 64;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    private static final BlockingQueue<Inflater> RAW_INFLATERS =
+            new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> ZLIB_INFLATERS =
+            new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private ContentDecoder() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /** Return whether every coding in contentEncoding can be decoded. */
+    static boolean isSupported(String contentEncoding) {
+        if (contentEncoding == null) {
+            return true;
+        }
+        for (String coding : contentEncoding.split(",")) {
+            switch (coding.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case "identity":
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+                break;
+            default:
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wrap is to undo the codings in contentEncoding, which must be
+     * supported.  Closing the result releases the pooled state of every
+     * layer without closing is.  Corrupt input surfaces as ZipException
+     * and output beyond MAX_DECODED_SIZE as TooLargeException.
+     */
+    static InputStream decode(InputStream is, String contentEncoding)
+            throws IOException {
+        if (contentEncoding == null) {
+            return is;
+        }
+        String[] codings = contentEncoding.split(",");
+        InputStream decoded = is;
+        try {
+            // codings are listed in the order they were applied
+            for (int i = codings.length - 1; i >= 0; --i) {
+                switch (codings[i].trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                case "x-gzip":
+                    readGzipHeader(decoded);
+                    decoded = new GzipInputStream(decoded, decoded != is,
+                            acquire(RAW_INFLATERS));
+                    break;
+                case "deflate":
+                    decoded = inflate(decoded, decoded != is);
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // release the layers created so far
+            if (decoded != is) {
+                decoded.close();
+            }
+            throw e;
+        }
+        return decoded;
+    }
+
+    private static InputStream inflate(InputStream in, boolean closeIn)
+            throws IOException {
+        PushbackInputStream pis = new PushbackInputStream(in, 2);
+        int b0 = pis.read();
+        int b1 = pis.read();
+        if (b1 != -1) {
+            pis.unread(b1);
+        }
+        if (b0 != -1) {
+            pis.unread(b0);
+        }
+        boolean zlib = b1 != -1 && (b0 & 0x0f) == 8 &&
+                ((b0 << 8) | b1) % 31 == 0;
+        BlockingQueue<Inflater> pool = zlib ? ZLIB_INFLATERS : RAW_INFLATERS;
+        return new PooledInflaterInputStream(pis, closeIn, acquire(pool),
+                pool);
+    }
+
+    private static Inflater acquire(BlockingQueue<Inflater> pool) {
+        Inflater inflater = pool.poll();
+        if (inflater == null) {
+            inflater = new Inflater(/*nowrap=*/ pool == RAW_INFLATERS);
+        }
+        return inflater;
+    }
+
+    private static void readGzipHeader(InputStream is) throws IOException {
+        if (readByte(is) != 0x1f || readByte(is) != 0x8b) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readByte(is) != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte(is);
+        // MTIME, XFL and OS
+        for (int i = 0; i < 6; ++i) {
+            readByte(is);
+        }
+        if ((flags & GZIP_FEXTRA) != 0) {
+            int length = readByte(is) | (readByte(is) << 8);
+            for (int i = 0; i < length; ++i) {
+                readByte(is);
+            }
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            while (readByte(is) != 0) {
+                // skip file name
+            }
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            while (readByte(is) != 0) {
+                // skip comment
+            }
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            readByte(is);
+            readByte(is);
+        }
+    }
+
+    private static int readByte(InputStream is) throws IOException {
+        int b = is.read();
+        if (b == -1) {
+            throw new ZipException("Unexpected end of GZIP input");
+        }
+        return b;
+    }
+
+    /**
+     * Returns its Inflater to the pool on close.  Closes in only when it is
+     * another decoding layer, leaving the request body open.
+     */
+    private static class PooledInflaterInputStream
+            extends InflaterInputStream {
+        private final BlockingQueue<Inflater> pool;
+        private final boolean closeIn;
+        private long inflated;
+        private boolean closed;
+
+        PooledInflaterInputStream(InputStream in, boolean closeIn,
+                Inflater inflater, BlockingQueue<Inflater> pool) {
+            super(in, inflater, BUFFER_SIZE);
+            this.closeIn = closeIn;
+            this.pool = pool;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (EOFException eofe) {
+                throw new ZipException("Truncated compressed input");
+            }
+            if (n > 0) {
+                inflated += n;
+                if (inflated > MAX_DECODED_SIZE) {
+                    throw new TooLargeException(
+                            "Decoded body exceeds " + MAX_DECODED_SIZE);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.reset();
+                if (!pool.offer(inf)) {
+                    inf.end();
+                }
+                if (closeIn) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Inflates a series of gzip members, verifying the CRC-32 and size
+     * trailer of each.  Anything after a member other than another member
+     * is rejected.
+     */
+    private static final class GzipInputStream
+            extends PooledInflaterInputStream {
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private boolean eof;
+
+        GzipInputStream(InputStream in, boolean closeIn, Inflater inflater) {
+            super(in, closeIn, inflater, RAW_INFLATERS);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!eof) {
+                int n = super.read(b, off, len);
+                if (n != -1) {
+                    crc.update(b, off, n);
+                    size += n;
+                    return n;
+                }
+                eof = !nextMember();
+            }
+            return -1;
+        }
+
+        /**
+         * Check the trailer of the current member and start inflating the
+         * next one.  Return false at the end of the input.
+         */
+        private boolean nextMember() throws IOException {
+            // the trailer starts with whatever input the inflater left over
+            byte[] trailer = new byte[8];
+            int remaining = inf.getRemaining();
+            int buffered = Math.min(remaining, trailer.length);
+            System.arraycopy(buf, len - remaining, trailer, 0, buffered);
+            for (int i = buffered; i < trailer.length; ++i) {
+                trailer[i] = (byte) readByte(in);
+            }
+            if (readInt(trailer, 0) != (crc.getValue() & 0xffffffffL) ||
+                    readInt(trailer, 4) != (size & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+
+            // the next header may also be partly in buf
+            ByteArrayInputStream head = new ByteArrayInputStream(buf,
+                    len - remaining + buffered, remaining - buffered);
+            PushbackInputStream next = new PushbackInputStream(
+                    new SequenceInputStream(head, in), 1);
+            int b = next.read();
+            if (b == -1) {
+                return false;
+            }
+            next.unread(b);
+            readGzipHeader(next);
+            inf.reset();
+            crc.reset();
+            size = 0;
+            if (head.available() > 0) {
+                inf.setInput(buf, len - head.available(), head.available());
+            }
+            return true;
+        }
+
+        private static long readInt(byte[] b, int off) {
+            return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8) |
+                    ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Per-thread MessageDigest and Mac instances for the authentication
+ * endpoints, which avoid a provider lookup per request, and constant-time
+ * comparison of credentials.
+ */
+final class Digests {
+    private static final ThreadLocal<MessageDigest> MD5 =
+            ThreadLocal.withInitial(() -> newMessageDigest("MD5"));
+    private static final ThreadLocal<MessageDigest> SHA256 =
+            ThreadLocal.withInitial(() -> newMessageDigest("SHA-256"));
+    private static final ThreadLocal<Mac> HMAC_SHA256 =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    return Mac.getInstance("HmacSHA256");
+                } catch (NoSuchAlgorithmException nsae) {
+                    throw new AssertionError(nsae);
+                }
+            });
+
+    private Digests() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /**
+     * Return this thread's reset instance of algorithm, MD5 or SHA-256, or
+     * null if it is not supported.
+     */
+    static MessageDigest get(String algorithm) {
+        MessageDigest md;
+        if (algorithm.equals("MD5")) {
+            md = MD5.get();
+        } else if (algorithm.equals("SHA-256")) {
+            md = SHA256.get();
+        } else {
+            return null;
+        }
+        md.reset();
+        return md;
+    }
+
+    static String hex(String algorithm, String input) {
+        return Hex.encodeHexString(get(algorithm).digest(
+                input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static byte[] hmacSha256(byte[] key, String input) {
+        Mac mac = HMAC_SHA256.get();
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalArgumentException(gse);
+        }
+        return mac.doFinal(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compare a and b in time which depends only on their lengths, so that
+     * clients cannot discover credentials by timing failures.
+     */
+    static boolean isEqual(String a, String b) {
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8),
+                b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest newMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+    }
+}
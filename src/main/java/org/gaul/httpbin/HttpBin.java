@@ -21,16 +21,35 @@ import static java.util.Objects.requireNonNull;
 
 import java.net.URI;
 
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 /**
  * Reimplementation of HttpBin https://httpbin.org/ suitable for offline unit
- * tests.
+ * tests.  https endpoints use a generated self-signed certificate and
+ * negotiate HTTP/2 or HTTP/1.1 via ALPN.
  */
 public final class HttpBin {
+    private static final String KEY_STORE_PASSWORD = "httpbin";
+    private static final long DEFAULT_STOP_TIMEOUT_MS = 10 * 1000;
+
     private final Server server;
+    private final SslContextFactory.Server sslContextFactory;
+    private final AdmissionHandler admissionHandler = new AdmissionHandler();
+    private final StatisticsHandler statisticsHandler =
+            new StatisticsHandler();
+    private final GzipHandler gzipHandler = new GzipHandler();
+    private final ServerStats serverStats;
 
     public HttpBin(URI endpoint) throws Exception {
         this(endpoint, new HttpBinHandler());
@@ -40,24 +59,118 @@ public final class HttpBin {
         requireNonNull(endpoint);
 
         server = new Server();
-        HttpConnectionFactory httpConnectionFactory =
-                new HttpConnectionFactory();
-        ServerConnector connector = new ServerConnector(server,
-                httpConnectionFactory);
+        serverStats = new ServerStats(server,
+                ServerStats.DEFAULT_SAMPLE_INTERVAL_MS);
+        ServerConnector connector;
+        if ("https".equals(endpoint.getScheme())) {
+            sslContextFactory = new SslContextFactory.Server();
+            sslContextFactory.setKeyStore(SelfSignedKeyStore.create(
+                    endpoint.getHost(), KEY_STORE_PASSWORD));
+            sslContextFactory.setKeyStorePassword(KEY_STORE_PASSWORD);
+            sslContextFactory.setCertAlias(SelfSignedKeyStore.ALIAS);
+            sslContextFactory.setSessionCachingEnabled(true);
+
+            HttpConfiguration httpConfiguration = newHttpConfiguration();
+            SecureRequestCustomizer customizer = new SecureRequestCustomizer();
+            customizer.setSslSessionAttribute(
+                    HttpBinHandler.SSL_SESSION_ATTRIBUTE);
+            httpConfiguration.addCustomizer(customizer);
+            HttpConnectionFactory httpConnectionFactory =
+                    new HttpConnectionFactory(httpConfiguration);
+            HTTP2ServerConnectionFactory http2ConnectionFactory =
+                    new HTTP2ServerConnectionFactory(httpConfiguration);
+            ALPNServerConnectionFactory alpnConnectionFactory =
+                    new ALPNServerConnectionFactory();
+            alpnConnectionFactory.setDefaultProtocol(
+                    httpConnectionFactory.getProtocol());
+            SslConnectionFactory sslConnectionFactory =
+                    new SslConnectionFactory(sslContextFactory,
+                            alpnConnectionFactory.getProtocol());
+            connector = new ServerConnector(server, sslConnectionFactory,
+                    alpnConnectionFactory, http2ConnectionFactory,
+                    httpConnectionFactory);
+        } else {
+            sslContextFactory = null;
+            HttpConnectionFactory httpConnectionFactory =
+                    new HttpConnectionFactory(newHttpConfiguration());
+            connector = new ServerConnector(server, httpConnectionFactory);
+        }
         connector.setHost(endpoint.getHost());
         connector.setPort(endpoint.getPort());
+        connector.addBean(new ConnectionTracker());
+        connector.addBean(new ConnectionStatistics());
         server.addConnector(connector);
-        server.setHandler(handler);
+        admissionHandler.setHandler(handler);
+        gzipHandler.setIncludedMimeTypes("application/json");
+        // the default only compresses GET and POST responses
+        gzipHandler.setIncludedMethods("DELETE", "GET", "PATCH", "POST",
+                "PUT");
+        gzipHandler.setHandler(admissionHandler);
+        statisticsHandler.setHandler(gzipHandler);
+        server.setHandler(statisticsHandler);
+        server.addBean(serverStats);
+        server.setStopTimeout(DEFAULT_STOP_TIMEOUT_MS);
+    }
+
+    private static HttpConfiguration newHttpConfiguration() {
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        // header buffers only grow to this size when a response needs it
+        httpConfiguration.setResponseHeaderSize(
+                HttpBinHandler.MAX_RESPONSE_HEADER_SIZE);
+        return httpConfiguration;
     }
 
     public void start() throws Exception {
         server.start();
     }
 
+    /**
+     * Stop accepting connections and wait up to the stop timeout for
+     * in-flight requests to complete before closing connections.
+     */
     public void stop() throws Exception {
         server.stop();
     }
 
+    /**
+     * Set how long stop waits for in-flight requests such as long /stream
+     * and /drip responses, or zero to stop immediately.  Defaults to ten
+     * seconds.
+     */
+    public void setStopTimeout(long stopTimeoutMs) {
+        server.setStopTimeout(stopTimeoutMs);
+    }
+
+    /**
+     * Return the TLS configuration for https endpoints or null for http
+     * endpoints.  Callers can change protocols, cipher suites, the JSSE
+     * provider and session caching before calling start.
+     */
+    public SslContextFactory.Server getSslContextFactory() {
+        return sslContextFactory;
+    }
+
+    /**
+     * Return the response compression settings.  By default JSON responses
+     * are gzipped when the client sends Accept-Encoding: gzip.
+     */
+    public GzipHandler getGzipHandler() {
+        return gzipHandler;
+    }
+
+    /** Return the admission limits, which admit everything by default. */
+    public AdmissionHandler getAdmissionHandler() {
+        return admissionHandler;
+    }
+
+    /**
+     * Emit a periodic org.gaul.httpbin.Stats JFR event with the figures
+     * from /stats to recordings which enable it.
+     */
+    public void setFlightRecorderEvents(boolean enabled) {
+        serverStats.setFlightRecorderEvents(enabled);
+    }
+
     public int getPort() {
         return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
     }
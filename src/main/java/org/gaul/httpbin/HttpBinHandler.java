@@ -17,22 +17,37 @@
 
 package org.gaul.httpbin;
 
+import static java.util.Objects.requireNonNull;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.net.ssl.SSLSession;
 
+import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.HttpChannel;
 import org.eclipse.jetty.server.MultiPartFormInputStream;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -42,15 +57,98 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import jakarta.servlet.http.Cookie;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.Part;
 
 public class HttpBinHandler extends AbstractHandler {
+    /** Request header which closes the connection after n requests. */
+    static final String CLOSE_AFTER_HEADER = "X-Connection-Close-After";
+    /** Request header which sets the connection idle timeout in ms. */
+    static final String IDLE_TIMEOUT_HEADER = "X-Connection-Idle-Timeout";
+    /** Request attribute which holds the SSLSession of TLS requests. */
+    static final String SSL_SESSION_ATTRIBUTE = "org.gaul.httpbin.ssl_session";
+    /** Largest response header block HttpBin connectors will send. */
+    static final int MAX_RESPONSE_HEADER_SIZE = 1024 * 1024;
+
     private static final Logger logger = LoggerFactory.getLogger(
             HttpBinHandler.class);
-    private static final int MAX_DELAY_MS = 10 * 1000;
+    private static final long DEFAULT_KEY_VALUE_CAPACITY = 64 * 1024 * 1024;
+    private static final int BASE64_CACHE_ENTRIES = 1024;
+    private static final long BASE64_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int BASE64_CACHE_ENTRY_BYTES = 64 * 1024;
+    /** Endpoints which echo the request body besides /anything. */
+    private static final Set<String> ECHO_URIS = Set.of(
+            "/delete", "/get", "/patch", "/post", "/put");
+    /** Fault injection draws from a separate stream for each route. */
+    private static final String FAULT_ROUTE_PREFIX = "fault:";
+    /**
+     * First path segments which the handler serves.  Other paths share one
+     * fault stream so that clients cannot create sequences without bound.
+     */
+    private static final Set<String> ROUTES = Set.of(
+            "/", "/absolute-redirect", "/admin", "/anything", "/base64",
+            "/basic-auth", "/bearer", "/bytes", "/cache", "/connection",
+            "/cookies", "/deflate", "/delay", "/delete", "/deny",
+            "/digest-auth", "/drip", "/etag", "/get", "/gzip", "/headers",
+            "/hidden-basic-auth", "/html", "/image", "/ip", "/json", "/kv",
+            "/patch", "/post", "/put", "/range", "/ratelimit", "/redirect",
+            "/redirect-loop", "/redirect-to", "/relative-redirect",
+            "/requests", "/response-headers", "/robots.txt", "/sigv4",
+            "/stats", "/status", "/stream", "/stream-bytes", "/text", "/tls",
+            "/upload-sink", "/user-agent", "/xml");
+    private static final String UNKNOWN_ROUTE = "*";
+    private static final String AUTH_REALM = "httpbin";
+    private static final String DIGEST_OPAQUE =
+            Digests.hex("MD5", AUTH_REALM);
+    private static final long DIGEST_NONCE_LIFETIME_MINUTES = 5;
+    private static final int DIGEST_MAX_NONCES = 64 * 1024;
+    /** Bytes of a Set-Cookie header line besides the value. */
+    private static final int COOKIE_HEADER_OVERHEAD = 32;
+    private static final int MAX_PRECOMPUTED_REDIRECTS = 64;
+    private static final int MAX_REDIRECT_ORIGINS = 16;
+    /** Longest /redirect-loop cycle whose locations are precomputed. */
+    private static final int MAX_LOOP_LENGTH = 16;
+    private static final String[] RELATIVE_REDIRECTS =
+            new String[MAX_PRECOMPUTED_REDIRECTS];
+    /** Indexed by loop length then by step. */
+    private static final String[][] LOOP_REDIRECTS =
+            new String[MAX_LOOP_LENGTH + 1][];
+
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final NonceCache digestNonces = new NonceCache(
+            DIGEST_NONCE_LIFETIME_MINUTES, TimeUnit.MINUTES,
+            DIGEST_MAX_NONCES);
+    private final Map<String, String[]> absoluteRedirects =
+            new ConcurrentHashMap<>();
+    private final Map<String, String[]> secureAbsoluteRedirects =
+            new ConcurrentHashMap<>();
+    private final Base64Cache base64Cache = new Base64Cache(
+            BASE64_CACHE_ENTRIES, BASE64_CACHE_BYTES,
+            BASE64_CACHE_ENTRY_BYTES);
+    private volatile KeyValueStore keyValueStore = new KeyValueStore(
+            DEFAULT_KEY_VALUE_CAPACITY);
+    private volatile RequestRecorder requestRecorder;
+    private volatile RuntimeConfig runtimeConfig = RuntimeConfig.DEFAULT;
+    private volatile int maxRequestsPerConnection;
+    private volatile RandomSource randomSource;
+
+    static {
+        RELATIVE_REDIRECTS[0] = "/get";
+        for (int i = 1; i < RELATIVE_REDIRECTS.length; ++i) {
+            RELATIVE_REDIRECTS[i] = "/relative-redirect/" + i;
+        }
+        for (int length = 1; length <= MAX_LOOP_LENGTH; ++length) {
+            LOOP_REDIRECTS[length] = new String[length];
+            for (int step = 0; step < length; ++step) {
+                LOOP_REDIRECTS[length][step] = "/redirect-loop/" + length +
+                        "?step=" + step;
+            }
+        }
+    }
 
     @Override
     public void handle(String target, Request baseRequest,
@@ -62,15 +160,324 @@ public class HttpBinHandler extends AbstractHandler {
             logger.trace("header: {}: {}", headerName,
                     request.getHeader(headerName));
         }
+        if (!applyConnectionControls(baseRequest, request, servletResponse)) {
+            return;
+        }
+        RuntimeConfig config = runtimeConfig;
+        if (!request.getRequestURI().startsWith("/admin/") &&
+                injectFault(baseRequest, request, servletResponse, config,
+                        randomSource)) {
+            return;
+        }
+
+        if (request.getRequestURI().equals("/upload-sink") &&
+                "true".equals(request.getParameter("async"))) {
+            handleUploadSinkAsync(baseRequest, request, servletResponse);
+            return;
+        }
+
+        RequestRecorder recorder = requestRecorder;
         try (InputStream is = request.getInputStream();
-             OutputStream os = servletResponse.getOutputStream()) {
-            handleHelper(baseRequest, request, servletResponse, is, os);
+             OutputStream os = config.getThrottleBytesPerSecond() > 0 ?
+                     new ThrottledOutputStream(
+                             servletResponse.getOutputStream(),
+                             config.getThrottleBytesPerSecond()) :
+                     servletResponse.getOutputStream()) {
+            if (recorder == null ||
+                    request.getRequestURI().startsWith("/requests")) {
+                handleHelper(baseRequest, request, servletResponse, config,
+                        is, os);
+                return;
+            }
+            RequestRecorder.BodyCapture body = recorder.capture(is);
+            try {
+                handleHelper(baseRequest, request, servletResponse, config,
+                        body, os);
+            } finally {
+                // digest the whole body even if the endpoint ignored it
+                Utils.copy(body, Utils.NULL_OUTPUT_STREAM);
+                recorder.record(request, body);
+            }
+        }
+    }
+
+    /**
+     * Apply the configured fault profile, returning true if the request
+     * was failed.
+     */
+    private static boolean injectFault(Request baseRequest,
+            HttpServletRequest request, HttpServletResponse servletResponse,
+            RuntimeConfig config, RandomSource source) throws IOException {
+        if (config.getFaultDelayMs() > 0) {
+            Utils.sleepUninterruptibly(config.getFaultDelayMs(),
+                    TimeUnit.MILLISECONDS);
+        }
+        if (config.getFaultRate() <= 0) {
+            return false;
+        }
+        double sample = source == null ?
+                ThreadLocalRandom.current().nextDouble() :
+                source.next(FAULT_ROUTE_PREFIX +
+                        getRoute(request.getRequestURI())).nextDouble();
+        if (sample >= config.getFaultRate()) {
+            return false;
+        }
+        try (InputStream is = request.getInputStream()) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+        }
+        servletResponse.setStatus(config.getFaultStatus());
+        baseRequest.setHandled(true);
+        return true;
+    }
+
+    /**
+     * Apply the connection control headers, returning false if the request
+     * was rejected because a header is malformed.
+     */
+    private boolean applyConnectionControls(Request baseRequest,
+            HttpServletRequest request, HttpServletResponse servletResponse)
+            throws IOException {
+        long idleTimeout = parseNonNegativeHeader(request,
+                IDLE_TIMEOUT_HEADER);
+        long requested = parseNonNegativeHeader(request, CLOSE_AFTER_HEADER);
+        if (idleTimeout == -2 || requested == -2) {
+            try (InputStream is = request.getInputStream()) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            }
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+            return false;
+        }
+
+        ConnectionTracker.Info info = getConnectionInfo(baseRequest);
+        if (info == null) {
+            return true;
+        }
+        long sequence = info.onRequest();
+
+        if (idleTimeout != -1) {
+            baseRequest.getHttpChannel().getEndPoint().setIdleTimeout(
+                    idleTimeout);
+        }
+
+        long closeAfter = maxRequestsPerConnection;
+        if (requested != -1) {
+            closeAfter = closeAfter == 0 ? requested :
+                    Math.min(closeAfter, requested);
+        }
+        // HTTP/2 multiplexes streams and does not allow Connection headers
+        if (closeAfter > 0 && sequence >= closeAfter &&
+                request.getProtocol().startsWith("HTTP/1.")) {
+            servletResponse.setHeader("Connection", "close");
+        }
+        return true;
+    }
+
+    /**
+     * Return the value of a numeric header, -1 if it is absent or -2 if it
+     * is malformed or negative.
+     */
+    private static long parseNonNegativeHeader(HttpServletRequest request,
+            String name) {
+        String value = request.getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed < 0 ? -2 : parsed;
+        } catch (NumberFormatException nfe) {
+            return -2;
+        }
+    }
+
+    /**
+     * Return the first path segment of uri, e.g. /bytes for /bytes/10, or
+     * UNKNOWN_ROUTE if the handler does not serve it.
+     */
+    private static String getRoute(String uri) {
+        int slash = uri.indexOf('/', 1);
+        String route = slash == -1 ? uri : uri.substring(0, slash);
+        return ROUTES.contains(route) ? route : UNKNOWN_ROUTE;
+    }
+
+    /** Return the next seeded Random for route, or an unseeded one. */
+    private Random newRandom(String route) {
+        RandomSource source = randomSource;
+        return source == null ? new Random() : source.next(route);
+    }
+
+    private static ConnectionTracker.Info getConnectionInfo(
+            Request baseRequest) {
+        HttpChannel channel = baseRequest.getHttpChannel();
+        ConnectionTracker tracker = channel.getConnector().getBean(
+                ConnectionTracker.class);
+        if (tracker == null) {
+            return null;
         }
+        return tracker.get(channel.getConnection());
     }
 
+    private static void handleUploadSinkAsync(Request baseRequest,
+            HttpServletRequest request, HttpServletResponse servletResponse)
+            throws IOException {
+        String method = request.getMethod();
+        if (!method.equals("POST") && !method.equals("PUT")) {
+            servletResponse.setStatus(501);
+            baseRequest.setHandled(true);
+            return;
+        }
+        UploadSink sink;
+        try {
+            sink = new UploadSink(request.getParameter("digest"));
+        } catch (IllegalArgumentException iae) {
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+            return;
+        }
+        int bufferSize = getUploadBufferSize(request);
+        if (bufferSize == -1) {
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+            return;
+        }
+        byte[] buffer = new byte[bufferSize];
+        sink.setReadMode("async");
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        ServletInputStream input = request.getInputStream();
+        input.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                while (input.isReady()) {
+                    int r = input.read(buffer);
+                    if (r == -1) {
+                        return;
+                    }
+                    sink.update(buffer, 0, r);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException {
+                sink.finish();
+                respondJSON(servletResponse, servletResponse.getOutputStream(),
+                        sink.toJSON());
+                async.complete();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.debug("upload-sink failed", t);
+                async.complete();
+            }
+        });
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * Return the bufferSize parameter for /upload-sink or -1 if it is out of
+     * range.  A zero-length buffer would make reads return 0 forever.
+     */
+    private static int getUploadBufferSize(HttpServletRequest request) {
+        int bufferSize = Utils.getIntParameter(request, "bufferSize",
+                UploadSink.DEFAULT_BUFFER_SIZE);
+        if (bufferSize < 1 || bufferSize > UploadSink.MAX_BUFFER_SIZE) {
+            return -1;
+        }
+        return bufferSize;
+    }
+
+    /**
+     * Replace the store behind /kv, discarding its contents.  The default
+     * store holds 64 MiB in direct memory.
+     */
+    public void setKeyValueStore(KeyValueStore store) {
+        this.keyValueStore = requireNonNull(store);
+    }
+
+    /**
+     * Close each connection after it has carried max requests, or never if
+     * max is zero.  Clients can request a lower limit with the
+     * X-Connection-Close-After header.
+     */
+    public void setMaxRequestsPerConnection(int max) {
+        this.maxRequestsPerConnection = max;
+    }
+
+    /**
+     * Derive the randomness for /bytes, /stream-bytes, /json and fault
+     * injection from seed so that runs are reproducible.  Requests which
+     * pass an explicit seed parameter are unaffected.  Pass null to
+     * restore unseeded randomness.
+     */
+    public void setSeed(Long seed) {
+        this.randomSource = seed == null ? null : new RandomSource(seed);
+    }
+
+    RandomSource getRandomSource() {
+        return randomSource;
+    }
+
+    /**
+     * Record all subsequent requests into recorder and expose them via
+     * /requests and /requests/export.  Pass null to disable recording.
+     */
+    public void setRequestRecorder(RequestRecorder recorder) {
+        this.requestRecorder = recorder;
+    }
+
+    /** Decode compressed request bodies for the echo endpoints. */
     private void handleHelper(Request baseRequest, HttpServletRequest request,
-            HttpServletResponse servletResponse, InputStream is,
-            OutputStream os) throws IOException {
+            HttpServletResponse servletResponse, RuntimeConfig config,
+            InputStream is, OutputStream os) throws IOException {
+        String uri = request.getRequestURI();
+        String contentEncoding = request.getHeader("Content-Encoding");
+        if (contentEncoding == null || (!ECHO_URIS.contains(uri) &&
+                !uri.startsWith("/anything"))) {
+            dispatch(baseRequest, request, servletResponse, config, is, os);
+            return;
+        }
+        if (!ContentDecoder.isSupported(contentEncoding)) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            servletResponse.setHeader("Accept-Encoding",
+                    ContentDecoder.SUPPORTED_ENCODINGS);
+            servletResponse.setStatus(
+                    HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            baseRequest.setHandled(true);
+            return;
+        }
+        try (InputStream decoded = ContentDecoder.decode(is,
+                contentEncoding)) {
+            dispatch(baseRequest, request, servletResponse, config, decoded,
+                    os);
+        } catch (ZipException ze) {
+            if (servletResponse.isCommitted()) {
+                throw ze;
+            }
+            logger.debug("invalid request body encoding", ze);
+            servletResponse.reset();
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+        } catch (ContentDecoder.TooLargeException tle) {
+            if (servletResponse.isCommitted()) {
+                throw tle;
+            }
+            servletResponse.reset();
+            servletResponse.setStatus(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            baseRequest.setHandled(true);
+        }
+    }
+
+    /**
+     * Route the request.  config is the snapshot taken when the request
+     * arrived so that each request sees one consistent configuration.
+     */
+    private void dispatch(Request baseRequest, HttpServletRequest request,
+            HttpServletResponse servletResponse, RuntimeConfig config,
+            InputStream is, OutputStream os) throws IOException {
         String method = request.getMethod();
         String uri = request.getRequestURI();
         try {
@@ -117,6 +524,104 @@ public class HttpBinHandler extends AbstractHandler {
                 respondJSON(servletResponse, os, response);
                 baseRequest.setHandled(true);
                 return;
+            } else if (method.equals("GET") && uri.equals("/connection")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                Connection connection =
+                        baseRequest.getHttpChannel().getConnection();
+                ConnectionTracker.Info info = getConnectionInfo(baseRequest);
+                JSONObject response = new JSONObject();
+                response.put("id", info == null ? JSONObject.NULL :
+                        info.getId());
+                response.put("request", info == null ? JSONObject.NULL :
+                        info.getRequests());
+                response.put("protocol", request.getProtocol());
+                response.put("local", request.getLocalAddr() + ":" +
+                        request.getLocalPort());
+                response.put("remote", request.getRemoteAddr() + ":" +
+                        request.getRemotePort());
+                response.put("age", System.currentTimeMillis() -
+                        connection.getCreatedTimeStamp());
+                response.put("idleTimeout",
+                        baseRequest.getHttpChannel().getEndPoint()
+                                .getIdleTimeout());
+                response.put("close", "close".equalsIgnoreCase(
+                        servletResponse.getHeader("Connection")));
+                respondJSON(servletResponse, os, response);
+                baseRequest.setHandled(true);
+                return;
+            } else if (uri.equals("/admin/config")) {
+                if (method.equals("GET")) {
+                    Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+                    respondJSON(servletResponse, os, runtimeConfig.toJSON());
+                    baseRequest.setHandled(true);
+                    return;
+                } else if (!method.equals("POST") && !method.equals("PUT") &&
+                        !method.equals("PATCH")) {
+                    Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                Utils.copy(is, body);
+                RuntimeConfig updated;
+                try {
+                    JSONObject changes = new JSONObject(
+                            body.toString(StandardCharsets.UTF_8));
+                    synchronized (this) {
+                        updated = runtimeConfig.update(changes);
+                        runtimeConfig = updated;
+                    }
+                } catch (IllegalArgumentException | JSONException e) {
+                    logger.debug("invalid runtime config", e);
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                respondJSON(servletResponse, os, updated.toJSON());
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") && uri.equals("/stats")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                ServerStats stats = getServer() == null ? null :
+                        getServer().getBean(ServerStats.class);
+                if (stats == null) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_NOT_FOUND);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                respondJSON(servletResponse, os, stats.get());
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") && uri.equals("/tls")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                JSONObject response = new JSONObject();
+                response.put("secure", request.isSecure());
+                response.put("httpVersion", request.getProtocol());
+                SSLSession session = (SSLSession) request.getAttribute(
+                        SSL_SESSION_ATTRIBUTE);
+                if (session != null) {
+                    // a resumed session predates the connection which uses it
+                    long connectionCreated = baseRequest.getHttpChannel()
+                            .getConnection().getEndPoint()
+                            .getCreatedTimeStamp();
+                    response.put("protocol", session.getProtocol());
+                    response.put("cipherSuite", session.getCipherSuite());
+                    response.put("sessionId", Hex.encodeHexString(
+                            session.getId()));
+                    response.put("sessionCreated", session.getCreationTime());
+                    response.put("resumed",
+                            session.getCreationTime() < connectionCreated);
+                }
+                respondJSON(servletResponse, os, response);
+                baseRequest.setHandled(true);
+                return;
             } else if (method.equals("GET") && uri.equals("/user-agent")) {
                 JSONObject response = new JSONObject();
                 response.put("user-agent", request.getHeader("User-Agent"));
@@ -222,7 +727,8 @@ public class HttpBinHandler extends AbstractHandler {
                 int delayMs = (int) (1000 * Double.parseDouble(uri.substring(
                         "/delay/".length())));
                 try {
-                    Thread.sleep(Math.min(delayMs, MAX_DELAY_MS));
+                    Thread.sleep(Math.min(delayMs,
+                            config.getMaxDelayMs()));
                 } catch (InterruptedException ie) {
                     // ignore
                 }
@@ -271,6 +777,35 @@ public class HttpBinHandler extends AbstractHandler {
                 servletResponse.setHeader("ETag", eTag);
                 baseRequest.setHandled(true);
                 return;
+            } else if (method.equals("GET") && uri.equals("/requests") &&
+                    requestRecorder != null) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                long since = Utils.getLongParameter(request, "since", 0);
+                JSONArray requests = new JSONArray();
+                for (RequestRecorder.Entry entry :
+                        requestRecorder.since(since)) {
+                    requests.put(entry.toJSON());
+                }
+
+                JSONObject response = new JSONObject();
+                response.put("requests", requests);
+                response.put("next", requestRecorder.nextSequence());
+                respondJSON(servletResponse, os, response);
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") &&
+                    uri.equals("/requests/export") &&
+                    requestRecorder != null) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                long since = Utils.getLongParameter(request, "since", 0);
+                servletResponse.setContentType("application/x-ndjson");
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                requestRecorder.export(since, os);
+                os.flush();
+                baseRequest.setHandled(true);
+                return;
             } else if (method.equals("GET") && uri.equals("/drip")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
 
@@ -287,13 +822,20 @@ public class HttpBinHandler extends AbstractHandler {
                 int delay = Utils.getIntParameter(request, "delay", 0);
 
                 servletResponse.setStatus(code);
+                PayloadOutputStream pos = createPayloadOutputStream(
+                        baseRequest, request, servletResponse, os, numBytes,
+                        /*defaultLength=*/ false, /*defaultChunkSize=*/ 0);
+                if (pos == null) {
+                    return;
+                }
                 Utils.sleepUninterruptibly(delay, TimeUnit.SECONDS);
 
                 for (int i = 0; i < numBytes; ++i) {
                     Utils.sleepUninterruptibly(durationMs / numBytes,
                             TimeUnit.MILLISECONDS);
-                    os.write('*');
+                    pos.write('*');
                 }
+                pos.finish();
 
                 baseRequest.setHandled(true);
                 return;
@@ -335,17 +877,88 @@ public class HttpBinHandler extends AbstractHandler {
                 int seed = Utils.getIntParameter(request, "seed", -1);
                 int chunkSize = Utils.getIntParameter(request, "chunkSize",
                         200);
+                if (chunkSize <= 0) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
                 byte[] buf = new byte[chunkSize];
-                Random random = seed == -1 ? new Random() : new Random(seed);
+                Random random = seed == -1 ? newRandom("/stream-bytes") :
+                        new Random(seed);
 
                 servletResponse.setStatus(HttpServletResponse.SC_OK);
+                PayloadOutputStream pos = createPayloadOutputStream(
+                        baseRequest, request, servletResponse, os, numBytes,
+                        /*defaultLength=*/ false, chunkSize);
+                if (pos == null) {
+                    return;
+                }
 
                 for (long i = 0; i < numBytes; i += chunkSize) {
                     random.nextBytes(buf);
-                    os.write(buf, 0, i + chunkSize > numBytes ?
+                    pos.write(buf, 0, i + chunkSize > numBytes ?
                             (int) (numBytes - i) : chunkSize);
                 }
+                pos.finish();
+
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") && uri.startsWith("/json/")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                long size = Long.parseLong(uri.substring("/json/".length()));
+                int depth = Utils.getIntParameter(request, "depth", 2);
+                int width = Utils.getIntParameter(request, "width", 4);
+                // only draw from the route's stream without an explicit seed
+                long seed;
+                if (request.getParameter("seed") != null) {
+                    seed = Utils.getLongParameter(request, "seed", 0);
+                } else {
+                    RandomSource source = randomSource;
+                    seed = source == null ? 0 :
+                            source.next("/json").nextLong();
+                }
+                long leaves = 1;
+                for (int i = 0; i < depth &&
+                        leaves <= SyntheticPayloads.MAX_JSON_LEAVES; ++i) {
+                    leaves *= width;
+                }
+                if (size < 2 || depth < 0 ||
+                        depth > SyntheticPayloads.MAX_JSON_DEPTH ||
+                        width < 1 ||
+                        leaves > SyntheticPayloads.MAX_JSON_LEAVES) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
 
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                servletResponse.setContentType("application/json");
+                servletResponse.setContentLengthLong(size);
+                SyntheticPayloads.writeJSON(os, size, depth, width, seed);
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") && uri.startsWith("/text/")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                long size = Long.parseLong(uri.substring("/text/".length()));
+                String charset = request.getParameter("charset");
+                if (charset == null) {
+                    charset = "mixed";
+                }
+                if (size < 0 || !SyntheticPayloads.isTextCharset(charset)) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                servletResponse.setContentType("text/plain; charset=utf-8");
+                servletResponse.setContentLengthLong(size);
+                SyntheticPayloads.writeText(os, size, charset);
                 baseRequest.setHandled(true);
                 return;
             } else if ((method.equals("DELETE") && uri.equals("/delete")) ||
@@ -396,6 +1009,80 @@ public class HttpBinHandler extends AbstractHandler {
                 respondJSON(servletResponse, os, response);
                 baseRequest.setHandled(true);
                 return;
+            } else if ((method.equals("POST") || method.equals("PUT")) &&
+                    uri.equals("/upload-sink")) {
+                UploadSink sink;
+                try {
+                    sink = new UploadSink(request.getParameter("digest"));
+                } catch (IllegalArgumentException iae) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                int bufferSize = getUploadBufferSize(request);
+                if (bufferSize == -1) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                sink.drain(is, bufferSize,
+                        "true".equals(request.getParameter("direct")));
+
+                respondJSON(servletResponse, os, sink.toJSON());
+                baseRequest.setHandled(true);
+                return;
+            } else if (uri.startsWith("/ratelimit/")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                String key = uri.substring("/ratelimit/".length());
+                double rps = Utils.getDoubleParameter(request, "rps", 10);
+                int burst = Utils.getIntParameter(request, "burst",
+                        (int) Math.max(1, Math.ceil(rps)));
+                RateLimiter.Decision decision;
+                try {
+                    decision = rateLimiter.acquire(key, rps, burst);
+                } catch (RateLimiter.FullException fe) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    servletResponse.setHeader("Retry-After", "1");
+                    baseRequest.setHandled(true);
+                    return;
+                } catch (IllegalArgumentException iae) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+
+                servletResponse.setHeader("RateLimit-Limit",
+                        String.valueOf(decision.getLimit()));
+                servletResponse.setHeader("RateLimit-Remaining",
+                        String.valueOf(decision.getRemaining()));
+                servletResponse.setHeader("RateLimit-Reset",
+                        String.valueOf(toSecondsCeiling(
+                                decision.getResetNanos())));
+                if (!decision.isAllowed()) {
+                    servletResponse.setHeader("Retry-After",
+                            String.valueOf(toSecondsCeiling(
+                                    decision.getRetryAfterNanos())));
+                    servletResponse.setStatus(429);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+
+                JSONObject response = new JSONObject();
+                response.put("key", key);
+                response.put("limit", decision.getLimit());
+                response.put("remaining", decision.getRemaining());
+                respondJSON(servletResponse, os, response);
+                baseRequest.setHandled(true);
+                return;
+            } else if (uri.startsWith("/kv/")) {
+                handleKeyValue(baseRequest, request, servletResponse, is, os,
+                        uri.substring("/kv/".length()));
+                return;
             } else if (uri.equals("/redirect-to")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
                 int statusCode = Utils.getIntParameter(request, "status_code",
@@ -405,46 +1092,56 @@ public class HttpBinHandler extends AbstractHandler {
                 baseRequest.setHandled(true);
                 return;
             } else if (uri.startsWith("/redirect/") ||
-                    uri.startsWith("/relative-redirect/")) {
+                    uri.startsWith("/relative-redirect/") ||
+                    uri.startsWith("/absolute-redirect/")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
 
+                String prefix = uri.substring(0, uri.indexOf('/', 1) + 1);
                 int count = Integer.parseInt(uri.substring(
-                        uri.startsWith("/redirect/") ?
-                                "/redirect/".length() :
-                                "/relative-redirect/".length())) - 1;
-                if (count > 0) {
-                    StringBuilder path = new StringBuilder();
-                    if ("true".equals(request.getParameter("absolute"))) {
-                        path.append(request.getRequestURL());
-                        path.setLength(path.length() - uri.length());
-                        path.append("/absolute-redirect/");
-                    } else {
-                        path.append("/relative-redirect/");
+                        prefix.length())) - 1;
+                String ports = request.getParameter("ports");
+                if (ports != null) {
+                    String location;
+                    try {
+                        location = getCrossPortLocation(request, ports,
+                                count > 0 ? prefix + count + "?ports=" +
+                                        ports : "/get");
+                    } catch (IllegalArgumentException iae) {
+                        servletResponse.setStatus(
+                                HttpServletResponse.SC_BAD_REQUEST);
+                        baseRequest.setHandled(true);
+                        return;
                     }
-                    path.append(count);
-                    redirectTo(servletResponse, path.toString());
+                    redirectTo(servletResponse, location);
+                } else if (prefix.equals("/absolute-redirect/") ||
+                        (prefix.equals("/redirect/") &&
+                         "true".equals(request.getParameter("absolute")))) {
+                    redirectTo(servletResponse, getAbsoluteRedirect(request,
+                            uri, count));
                 } else {
-                    redirectTo(servletResponse, "/get");
+                    redirectTo(servletResponse, getRelativeRedirect(count));
                 }
 
                 baseRequest.setHandled(true);
                 return;
-            } else if (uri.startsWith("/absolute-redirect/")) {
+            } else if (method.equals("GET") &&
+                    uri.startsWith("/redirect-loop/")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
 
-                int count = Integer.parseInt(uri.substring(
-                        "/absolute-redirect/".length())) - 1;
-                StringBuffer path = request.getRequestURL();
-                path.setLength(path.length() - uri.length());
-                if (count > 0) {
-                    path.append("/absolute-redirect/")
-                            .append(count);
-                    redirectTo(servletResponse, path.toString());
-                } else {
-                    path.append("/get");
-                    redirectTo(servletResponse, path.toString());
+                int length = Integer.parseInt(uri.substring(
+                        "/redirect-loop/".length()));
+                int step = Utils.getIntParameter(request, "step", 0);
+                if (length <= 0 || step < 0 || step >= length) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
                 }
-
+                int next = (step + 1) % length;
+                redirectTo(servletResponse,
+                        length <= MAX_LOOP_LENGTH ?
+                                LOOP_REDIRECTS[length][next] :
+                                "/redirect-loop/" + length + "?step=" + next);
                 baseRequest.setHandled(true);
                 return;
             } else if (method.equals("GET") &&
@@ -461,20 +1158,45 @@ public class HttpBinHandler extends AbstractHandler {
             } else if (uri.equals("/cookies")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
 
-                JSONObject cookies = new JSONObject();
-
-                if (request.getCookies() != null) {
-                    for (Cookie cookie : request.getCookies()) {
-                        cookies.put(cookie.getName(), cookie.getValue());
-                    }
+                // parse the header directly rather than via Cookie objects
+                Map<String, String> cookies = new LinkedHashMap<>();
+                for (String header : Collections.list(
+                        request.getHeaders("Cookie"))) {
+                    parseCookies(header, cookies);
                 }
 
                 JSONObject response = new JSONObject();
-                response.put("cookies", cookies);
-
+                response.put("cookies", new JSONObject(cookies));
                 respondJSON(servletResponse, os, response);
                 baseRequest.setHandled(true);
                 return;
+            } else if (method.equals("GET") &&
+                    uri.startsWith("/cookies/generate/")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                int count = Integer.parseInt(uri.substring(
+                        "/cookies/generate/".length()));
+                int size = Utils.getIntParameter(request, "size", 16);
+                if (count < 0 || size < 0 || (long) count *
+                        (size + COOKIE_HEADER_OVERHEAD) >
+                        MAX_RESPONSE_HEADER_SIZE) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                char[] value = new char[size];
+                for (int i = 0; i < size; ++i) {
+                    value[i] = (char) ('a' + i % 26);
+                }
+                String suffix = "=" + new String(value) + "; Path=/";
+                for (int i = 0; i < count; ++i) {
+                    servletResponse.addHeader("Set-Cookie", "c" + i + suffix);
+                }
+                servletResponse.setContentLength(0);
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+                return;
             } else if (uri.startsWith("/cookies/set")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
 
@@ -519,6 +1241,71 @@ public class HttpBinHandler extends AbstractHandler {
                         HttpServletResponse.SC_NOT_FOUND);
                 baseRequest.setHandled(true);
                 return;
+            } else if (uri.startsWith("/digest-auth/")) {
+                handleDigestAuth(request, servletResponse, is, os,
+                        uri.substring("/digest-auth/".length()));
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("GET") && uri.equals("/bearer")) {
+                Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+
+                String header = request.getHeader("Authorization");
+                String expected = request.getParameter("token");
+                if (header == null || !header.startsWith("Bearer ")) {
+                    servletResponse.setHeader("WWW-Authenticate", "Bearer");
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_UNAUTHORIZED);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                String token = header.substring("Bearer ".length());
+                if (expected != null && !Digests.isEqual(expected, token)) {
+                    servletResponse.setHeader("WWW-Authenticate",
+                            "Bearer error=\"invalid_token\"");
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_UNAUTHORIZED);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+
+                JSONObject response = new JSONObject();
+                response.put("authenticated", true);
+                response.put("token", token);
+                respondJSON(servletResponse, os, response);
+                baseRequest.setHandled(true);
+                return;
+            } else if (uri.startsWith("/sigv4/")) {
+                String[] credentials = uri.substring("/sigv4/".length())
+                        .split("/", 3);
+                MessageDigest sha256 = Digests.get("SHA-256");
+                Utils.copy(is, new DigestOutputStream(
+                        Utils.NULL_OUTPUT_STREAM, sha256));
+                String payloadHash = Hex.encodeHexString(sha256.digest());
+                if (credentials.length < 2) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+
+                SigV4Verifier.Result result = SigV4Verifier.verify(request,
+                        credentials[0], credentials[1], payloadHash,
+                        System.currentTimeMillis());
+                JSONObject response = new JSONObject();
+                if (result.isValid()) {
+                    response.put("authenticated", true);
+                    response.put("accessKey", credentials[0]);
+                    respondJSON(servletResponse, os, response);
+                } else {
+                    response.put("error", result.getError());
+                    response.put("canonicalRequest",
+                            result.getCanonicalRequest());
+                    response.put("stringToSign", result.getStringToSign());
+                    respondJSON(servletResponse, os, response,
+                            HttpServletResponse.SC_FORBIDDEN);
+                }
+                baseRequest.setHandled(true);
+                return;
             } else if (uri.startsWith("/anything")) {
                 servletResponse.setStatus(HttpServletResponse.SC_OK);
 
@@ -543,24 +1330,68 @@ public class HttpBinHandler extends AbstractHandler {
                 long length = Long.parseLong(uri.substring(
                         "/bytes/".length()));
                 int seed = Utils.getIntParameter(request, "seed", -1);
-                Random random = seed != -1 ?  new Random(seed) : new Random();
+                Random random = seed != -1 ? new Random(seed) :
+                        newRandom("/bytes");
 
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
                 servletResponse.setStatus(HttpServletResponse.SC_OK);
-                servletResponse.setContentLengthLong(length);
+                PayloadOutputStream pos = createPayloadOutputStream(
+                        baseRequest, request, servletResponse, os, length,
+                        /*defaultLength=*/ true, /*defaultChunkSize=*/ 0);
+                if (pos == null) {
+                    return;
+                }
                 byte[] buffer = new byte[4096];
                 for (long i = 0; i < length;) {
                     int count = (int) Math.min(buffer.length, length - i);
                     random.nextBytes(buffer);
-                    os.write(buffer, 0, count);
+                    pos.write(buffer, 0, count);
                     i += count;
                 }
+                pos.finish();
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("POST") &&
+                    uri.equals("/base64/encode")) {
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                servletResponse.setContentType("text/plain");
+                // closing the encoder writes the final quantum and padding
+                try (OutputStream encoder =
+                        Base64.getMimeEncoder().wrap(os)) {
+                    Utils.copy(is, encoder);
+                }
+                baseRequest.setHandled(true);
+                return;
+            } else if (method.equals("POST") &&
+                    uri.equals("/base64/decode")) {
+                servletResponse.setStatus(HttpServletResponse.SC_OK);
+                servletResponse.setContentType("application/octet-stream");
+                try {
+                    Utils.copy(Base64.getMimeDecoder().wrap(is), os);
+                } catch (IOException ioe) {
+                    // can only report malformed input before the first flush
+                    if (servletResponse.isCommitted()) {
+                        throw ioe;
+                    }
+                    logger.debug("invalid base64", ioe);
+                    servletResponse.reset();
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                }
                 baseRequest.setHandled(true);
                 return;
             } else if (method.equals("GET") && uri.startsWith("/base64/")) {
                 Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
-                byte[] body = Base64.getDecoder().decode(
-                        uri.substring("/base64/".length()));
+                byte[] body;
+                try {
+                    body = base64Cache.decode(
+                            uri.substring("/base64/".length()));
+                } catch (IllegalArgumentException iae) {
+                    servletResponse.setStatus(
+                            HttpServletResponse.SC_BAD_REQUEST);
+                    baseRequest.setHandled(true);
+                    return;
+                }
                 servletResponse.setStatus(HttpServletResponse.SC_OK);
                 os.write(body);
                 os.flush();
@@ -574,19 +1405,8 @@ public class HttpBinHandler extends AbstractHandler {
                 long end;
                 String range = request.getHeader("Range");
                 if (range != null && range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    String[] ranges = range.split("-", 2);
-                    if (ranges[0].isEmpty()) {
-                        start = size - Long.parseLong(ranges[1]);
-                        end = size - 1;
-                    } else if (ranges[1].isEmpty()) {
-                        start = Long.parseLong(ranges[0]);
-                        end = size - 1;
-                    } else {
-                        start = Long.parseLong(ranges[0]);
-                        end = Long.parseLong(ranges[1]);
-                    }
-                    if (end + 1 > size || start > end) {
+                    long[] bounds = parseRange(range, size);
+                    if (bounds == null) {
                         servletResponse.setStatus(HttpServletResponse.
                                 SC_REQUESTED_RANGE_NOT_SATISFIABLE);
                         servletResponse.addHeader("ETag", "range" + size);
@@ -595,6 +1415,8 @@ public class HttpBinHandler extends AbstractHandler {
                         baseRequest.setHandled(true);
                         return;
                     }
+                    start = bounds[0];
+                    end = bounds[1];
                     servletResponse.setStatus(
                             HttpServletResponse.SC_PARTIAL_CONTENT);
                 } else {
@@ -604,15 +1426,27 @@ public class HttpBinHandler extends AbstractHandler {
                 }
 
                 servletResponse.addHeader("ETag", "range" + size);
-                servletResponse.addHeader("Content-Length",
-                        String.valueOf(end - start + 1));
                 servletResponse.addHeader("Content-Range",
                         "bytes " + start + "-" + end + "/" + size);
                 servletResponse.addHeader("Accept-ranges", "bytes");
+                PayloadOutputStream pos = createPayloadOutputStream(
+                        baseRequest, request, servletResponse, os,
+                        end - start + 1, /*defaultLength=*/ true,
+                        /*defaultChunkSize=*/ 0);
+                if (pos == null) {
+                    return;
+                }
 
-                for (long i = start; i <= end; ++i) {
-                    os.write((char) ('a' + (i % 26)));
+                byte[] buffer = new byte[4096];
+                for (long i = start; i <= end;) {
+                    int count = (int) Math.min(buffer.length, end - i + 1);
+                    for (int j = 0; j < count; ++j) {
+                        buffer[j] = (byte) ('a' + ((i + j) % 26));
+                    }
+                    pos.write(buffer, 0, count);
+                    i += count;
                 }
+                pos.finish();
                 os.flush();
 
                 baseRequest.setHandled(true);
@@ -681,18 +1515,168 @@ public class HttpBinHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Wrap os with the framing controls requested by the client, or respond
+     * with 400 and return null if they are invalid.
+     */
+    private static PayloadOutputStream createPayloadOutputStream(
+            Request baseRequest, HttpServletRequest request,
+            HttpServletResponse servletResponse, OutputStream os,
+            long contentLength, boolean defaultLength, int defaultChunkSize)
+            throws IOException {
+        try {
+            return PayloadOutputStream.create(request, servletResponse, os,
+                    contentLength, defaultLength, defaultChunkSize);
+        } catch (IllegalArgumentException iae) {
+            logger.debug("invalid payload parameters", iae);
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+            return null;
+        }
+    }
+
+    /**
+     * Parse a bytes= Range header against size, returning the first and
+     * last offsets, or null if the range is not satisfiable.
+     */
+    private static long[] parseRange(String range, long size) {
+        String[] ranges = range.substring("bytes=".length()).split("-", 2);
+        long start;
+        long end;
+        if (ranges[0].isEmpty()) {
+            start = Math.max(0, size - Long.parseLong(ranges[1]));
+            end = size - 1;
+        } else if (ranges[1].isEmpty()) {
+            start = Long.parseLong(ranges[0]);
+            end = size - 1;
+        } else {
+            start = Long.parseLong(ranges[0]);
+            end = Long.parseLong(ranges[1]);
+        }
+        if (end + 1 > size || start > end) {
+            return null;
+        }
+        return new long[] {start, end};
+    }
+
+    private static long toSecondsCeiling(long nanos) {
+        return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) /
+                TimeUnit.SECONDS.toNanos(1);
+    }
+
     private static void respondJSON(HttpServletResponse response,
             OutputStream os, JSONObject obj) throws IOException {
+        respondJSON(response, os, obj, HttpServletResponse.SC_OK);
+    }
+
+    private static void respondJSON(HttpServletResponse response,
+            OutputStream os, JSONObject obj, int status) throws IOException {
         byte[] body = obj.toString(/*indent=*/ 2).getBytes(
                 StandardCharsets.UTF_8);
 
         response.setContentLength(body.length);
         response.setContentType("application/json");
-        response.setStatus(HttpServletResponse.SC_OK);
+        response.setStatus(status);
         os.write(body);
         os.flush();
     }
 
+    /**
+     * Parse a Cookie header into cookies, with later values for a name
+     * replacing earlier ones.  Attributes such as $Version are skipped.
+     */
+    private static void parseCookies(String header,
+            Map<String, String> cookies) {
+        int start = 0;
+        while (start < header.length()) {
+            int end = header.indexOf(';', start);
+            if (end == -1) {
+                end = header.length();
+            }
+            int equals = header.indexOf('=', start);
+            if (equals != -1 && equals < end) {
+                String name = header.substring(start, equals).trim();
+                String value = header.substring(equals + 1, end).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"' &&
+                        value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                if (!name.isEmpty() && name.charAt(0) != '$') {
+                    cookies.put(name, value);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static String getRelativeRedirect(int count) {
+        if (count < RELATIVE_REDIRECTS.length) {
+            return RELATIVE_REDIRECTS[Math.max(0, count)];
+        }
+        return "/relative-redirect/" + count;
+    }
+
+    /**
+     * Return the absolute Location for the next hop.  Locations for small
+     * counts are cached per Host so that long chains do not rebuild the
+     * request URL on every hop.
+     */
+    private String getAbsoluteRedirect(HttpServletRequest request, String uri,
+            int count) {
+        String host = request.getHeader("Host");
+        Map<String, String[]> cache = request.isSecure() ?
+                secureAbsoluteRedirects : absoluteRedirects;
+        String[] locations = host == null ? null : cache.get(host);
+        if (locations == null || count >= locations.length) {
+            StringBuffer url = request.getRequestURL();
+            url.setLength(url.length() - uri.length());
+            String origin = url.toString();
+            if (count >= MAX_PRECOMPUTED_REDIRECTS) {
+                return origin + "/absolute-redirect/" + count;
+            }
+            locations = new String[MAX_PRECOMPUTED_REDIRECTS];
+            locations[0] = origin + "/get";
+            for (int i = 1; i < locations.length; ++i) {
+                locations[i] = origin + "/absolute-redirect/" + i;
+            }
+            // Host is client controlled so bound the number of origins
+            if (host != null && cache.size() < MAX_REDIRECT_ORIGINS) {
+                cache.putIfAbsent(host, locations);
+            }
+        }
+        return locations[Math.max(0, count)];
+    }
+
+    /**
+     * Return the Location of path on the port after the local port in
+     * ports, a comma-separated list of [scheme:]port entries.
+     */
+    private static String getCrossPortLocation(HttpServletRequest request,
+            String ports, String path) {
+        String[] entries = ports.split(",");
+        String[] schemes = new String[entries.length];
+        int[] numbers = new int[entries.length];
+        int current = -1;
+        for (int i = 0; i < entries.length; ++i) {
+            String entry = entries[i].trim();
+            int colon = entry.indexOf(':');
+            schemes[i] = colon == -1 ? request.getScheme() :
+                    entry.substring(0, colon);
+            if (!schemes[i].equals("http") && !schemes[i].equals("https")) {
+                throw new IllegalArgumentException(
+                        "unsupported scheme: " + schemes[i]);
+            }
+            numbers[i] = Integer.parseInt(entry.substring(colon + 1));
+            if (current == -1 && numbers[i] == request.getLocalPort() &&
+                    schemes[i].equals(request.getScheme())) {
+                current = i;
+            }
+        }
+        int next = (current + 1) % entries.length;
+        return schemes[next] + "://" + request.getServerName() + ":" +
+                numbers[next] + path;
+    }
+
     private static void redirectTo(HttpServletResponse response,
             String location, int statusCode) {
         response.setHeader("Location", location);
@@ -757,28 +1741,259 @@ public class HttpBinHandler extends AbstractHandler {
         }
     }
 
+    private void handleKeyValue(Request baseRequest,
+            HttpServletRequest request, HttpServletResponse servletResponse,
+            InputStream is, OutputStream os, String key) throws IOException {
+        String method = request.getMethod();
+        KeyValueStore store = keyValueStore;
+        baseRequest.setHandled(true);
+        if (key.isEmpty()) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (method.equals("PUT")) {
+            KeyValueStore.Value value;
+            try {
+                value = store.put(key, is, request.getContentLengthLong(),
+                        request.getContentType());
+            } catch (KeyValueStore.TooLargeException tle) {
+                servletResponse.setStatus(
+                        HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            } catch (KeyValueStore.FullException fe) {
+                servletResponse.setStatus(
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                servletResponse.setHeader("Retry-After", "1");
+                return;
+            }
+            servletResponse.setHeader("ETag", value.getETag());
+            servletResponse.setStatus(HttpServletResponse.SC_OK);
+            return;
+        } else if (method.equals("DELETE")) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            servletResponse.setStatus(store.delete(key) ?
+                    HttpServletResponse.SC_NO_CONTENT :
+                    HttpServletResponse.SC_NOT_FOUND);
+            return;
+        } else if (!method.equals("GET") && !method.equals("HEAD")) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            servletResponse.setHeader("Allow", "DELETE, GET, HEAD, PUT");
+            servletResponse.setStatus(
+                    HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+        KeyValueStore.Value value = store.get(key);
+        if (value == null) {
+            servletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String eTag = value.getETag();
+        servletResponse.setHeader("ETag", eTag);
+        servletResponse.setDateHeader("Last-Modified",
+                value.getLastModified());
+        servletResponse.setHeader("Accept-Ranges", "bytes");
+
+        String ifMatch = request.getHeader("If-Match");
+        if (ifMatch != null && !ifMatch.equals("*") &&
+                !ifMatch.equals(eTag)) {
+            servletResponse.setStatus(
+                    HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") ||
+                ifNoneMatch.equals(eTag))) {
+            servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long size = value.getLength();
+        long start = 0;
+        long end = size - 1;
+        String range = request.getHeader("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                servletResponse.setHeader("Content-Range", "bytes */" + size);
+                servletResponse.setStatus(HttpServletResponse.
+                        SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            servletResponse.setHeader("Content-Range",
+                    "bytes " + start + "-" + end + "/" + size);
+            servletResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        } else {
+            servletResponse.setStatus(HttpServletResponse.SC_OK);
+        }
+        servletResponse.setContentType(value.getContentType() != null ?
+                value.getContentType() : "application/octet-stream");
+        servletResponse.setContentLengthLong(end - start + 1);
+        if (method.equals("GET")) {
+            value.writeTo(os, start, end - start + 1);
+        }
+    }
+
     private static void handleBasicAuth(HttpServletRequest request,
             HttpServletResponse servletResponse, OutputStream os,
             String suffix, int failureStatus) throws IOException {
         String header = request.getHeader("Authorization");
-        if (header == null || !header.startsWith("Basic ")) {
-            servletResponse.setStatus(failureStatus);
-            return;
-        }
-
-        byte[] bytes = Base64.getDecoder().decode(
-                header.substring("Basic ".length()));
-        String[] parts = new String(
-                bytes, StandardCharsets.UTF_8).split(":", 2);
         String[] auth = suffix.split("/", 2);
-        if (auth.length != 2 || !Arrays.equals(auth, parts)) {
+        boolean authenticated = false;
+        if (header != null && header.startsWith("Basic ") &&
+                auth.length == 2) {
+            try {
+                byte[] bytes = Base64.getDecoder().decode(
+                        header.substring("Basic ".length()));
+                byte[] expected = (auth[0] + ":" + auth[1]).getBytes(
+                        StandardCharsets.UTF_8);
+                authenticated = MessageDigest.isEqual(expected, bytes);
+            } catch (IllegalArgumentException iae) {
+                // malformed credentials fail like wrong ones
+            }
+        }
+        if (!authenticated) {
+            if (failureStatus == HttpServletResponse.SC_UNAUTHORIZED) {
+                servletResponse.setHeader("WWW-Authenticate",
+                        "Basic realm=\"" + AUTH_REALM + "\"");
+            }
             servletResponse.setStatus(failureStatus);
             return;
         }
 
         JSONObject response = new JSONObject();
         response.put("authenticated", true);
-        response.put("user", parts[0]);
+        response.put("user", auth[0]);
         respondJSON(servletResponse, os, response);
     }
+
+    /**
+     * Handle /digest-auth/:qop/:user/:pass[/:algorithm] per RFC 7616 with
+     * MD5 or SHA-256.  Nonces are single-use unless the client sends
+     * increasing nonce counts.
+     */
+    private void handleDigestAuth(HttpServletRequest request,
+            HttpServletResponse servletResponse, InputStream is,
+            OutputStream os, String suffix) throws IOException {
+        String[] parts = suffix.split("/", 4);
+        String algorithm = parts.length == 4 ? parts[3] : "MD5";
+        if (parts.length < 3 || (!parts[0].equals("auth") &&
+                !parts[0].equals("auth-int")) ||
+                Digests.get(algorithm) == null) {
+            Utils.copy(is, Utils.NULL_OUTPUT_STREAM);
+            servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        String qop = parts[0];
+        String user = parts[1];
+        String password = parts[2];
+
+        MessageDigest bodyDigest = Digests.get(algorithm);
+        Utils.copy(is, new DigestOutputStream(Utils.NULL_OUTPUT_STREAM,
+                bodyDigest));
+        String bodyHash = Hex.encodeHexString(bodyDigest.digest());
+
+        boolean stale = false;
+        String header = request.getHeader("Authorization");
+        if (header != null && header.startsWith("Digest ")) {
+            Map<String, String> params = parseAuthParams(
+                    header.substring("Digest ".length()));
+            String requestUri = request.getQueryString() == null ?
+                    request.getRequestURI() :
+                    request.getRequestURI() + "?" + request.getQueryString();
+            String nonce = params.get("nonce");
+            String response = params.get("response");
+            String nc = params.get("nc");
+            // the route always demands a qop, so RFC 2069 responses without
+            // one would bypass the nonce count and auth-int body hash
+            boolean valid = nonce != null && response != null &&
+                    Digests.isEqual(user, params.getOrDefault(
+                            "username", "")) &&
+                    AUTH_REALM.equals(params.get("realm")) &&
+                    requestUri.equals(params.get("uri")) &&
+                    algorithm.equalsIgnoreCase(params.getOrDefault(
+                            "algorithm", "MD5")) &&
+                    qop.equals(params.get("qop")) && nc != null &&
+                    params.containsKey("cnonce");
+            if (valid) {
+                String ha1 = Digests.hex(algorithm, user + ":" +
+                        AUTH_REALM + ":" + password);
+                String ha2 = Digests.hex(algorithm, request.getMethod() +
+                        ":" + requestUri +
+                        (qop.equals("auth-int") ? ":" + bodyHash : ""));
+                String expected = Digests.hex(algorithm, ha1 + ":" + nonce +
+                        ":" + nc + ":" + params.get("cnonce") + ":" + qop +
+                        ":" + ha2);
+                valid = Digests.isEqual(expected, response);
+            }
+            if (valid) {
+                long nonceCount;
+                try {
+                    nonceCount = Long.parseLong(nc, 16);
+                } catch (NumberFormatException nfe) {
+                    nonceCount = 0;
+                }
+                // check the nonce last so that forgeries cannot consume it
+                NonceCache.Status status = digestNonces.use(nonce,
+                        nonceCount);
+                if (status == NonceCache.Status.VALID) {
+                    JSONObject json = new JSONObject();
+                    json.put("authenticated", true);
+                    json.put("user", user);
+                    respondJSON(servletResponse, os, json);
+                    return;
+                }
+                stale = status == NonceCache.Status.STALE;
+            }
+        }
+
+        servletResponse.setHeader("WWW-Authenticate", "Digest realm=\"" +
+                AUTH_REALM + "\", qop=\"" + qop + "\", nonce=\"" +
+                digestNonces.create() + "\", opaque=\"" + DIGEST_OPAQUE +
+                "\", algorithm=" + algorithm + ", stale=" +
+                (stale ? "TRUE" : "FALSE"));
+        servletResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+    }
+
+    /** Parse comma-separated name=value and name="value" parameters. */
+    private static Map<String, String> parseAuthParams(String input) {
+        Map<String, String> params = new HashMap<>();
+        int i = 0;
+        int length = input.length();
+        while (i < length) {
+            while (i < length && (input.charAt(i) == ',' ||
+                    input.charAt(i) == ' ')) {
+                ++i;
+            }
+            int equals = input.indexOf('=', i);
+            if (equals == -1) {
+                break;
+            }
+            String name = input.substring(i, equals).trim().toLowerCase(
+                    Locale.ROOT);
+            i = equals + 1;
+            StringBuilder value = new StringBuilder();
+            if (i < length && input.charAt(i) == '"') {
+                for (++i; i < length && input.charAt(i) != '"'; ++i) {
+                    char ch = input.charAt(i);
+                    if (ch == '\\' && i + 1 < length) {
+                        ch = input.charAt(++i);
+                    }
+                    value.append(ch);
+                }
+                ++i;
+            } else {
+                for (; i < length && input.charAt(i) != ','; ++i) {
+                    value.append(input.charAt(i));
+                }
+            }
+            params.put(name, value.toString().trim());
+        }
+        return params;
+    }
 }
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jetty.server.HttpInput;
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * In-memory object store backing the /kv endpoints.  Values live off-heap in
+ * direct buffer segments, or in memory-mapped temporary files once they
+ * exceed the spill threshold, and are evicted in LRU order when the total
+ * size would exceed the capacity.
+ */
+public final class KeyValueStore {
+    /** Thrown when a value cannot fit even in an empty store. */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Thrown when concurrent puts have reserved the remaining capacity. */
+    static final class FullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FullException(String message) {
+            super(message);
+        }
+    }
+
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int SMALL_SEGMENT_SIZE = 64 * 1024;
+    private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+    private final long capacity;
+    private final Path spillDirectory;
+    private final long spillThreshold;
+    // guarded by this
+    private final Map<String, Value> values =
+            new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+    private long size;
+    /** Bytes claimed by puts in progress which have not committed yet. */
+    private long reserved;
+
+    public KeyValueStore(long capacity) {
+        this(capacity, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a store which writes values larger than spillThreshold bytes to
+     * memory-mapped files in spillDirectory instead of direct memory.
+     */
+    public KeyValueStore(long capacity, Path spillDirectory,
+            long spillThreshold) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.spillDirectory = spillDirectory;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Stream is into a new value, replacing any previous value for key.
+     *
+     * Memory is reserved against the capacity before each segment is
+     * allocated, so concurrent puts cannot together exceed it.
+     *
+     * @param contentLength length hint or -1 if unknown
+     * @throws TooLargeException if the value exceeds the capacity
+     * @throws FullException if other puts hold the remaining capacity
+     */
+    Value put(String key, InputStream is, long contentLength,
+            String contentType) throws IOException {
+        if (contentLength > capacity) {
+            throw new TooLargeException("value exceeds capacity");
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+
+        List<ByteBuffer> segments = new ArrayList<>();
+        long length = 0;
+        long reservation = 0;
+        boolean committed = false;
+        FileChannel channel = null;
+        Path path = null;
+        try {
+            ByteBuffer segment = null;
+            while (true) {
+                if (segment == null || !segment.hasRemaining()) {
+                    if (segment != null) {
+                        segments.add(segment.flip());
+                    }
+                    if (channel == null && spillDirectory != null &&
+                            (length >= spillThreshold ||
+                             contentLength > spillThreshold)) {
+                        path = Files.createTempFile(spillDirectory, "kv",
+                                null);
+                        channel = FileChannel.open(path,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                        for (ByteBuffer buffer : segments) {
+                            while (buffer.hasRemaining()) {
+                                channel.write(buffer);
+                            }
+                        }
+                        segments.clear();
+                    }
+                    int segmentSize = segmentSize(contentLength, length,
+                            channel != null);
+                    reservation += reserve(segmentSize, reservation);
+                    segment = ByteBuffer.allocateDirect(segmentSize);
+                }
+                int r = read(is, segment);
+                if (r == -1) {
+                    break;
+                }
+                md5.update(segment.duplicate().flip().position(
+                        segment.position() - r));
+                length += r;
+                if (length > capacity) {
+                    throw new TooLargeException("value exceeds capacity");
+                }
+                if (channel != null && !segment.hasRemaining()) {
+                    segment.flip();
+                    while (segment.hasRemaining()) {
+                        channel.write(segment);
+                    }
+                    segment.clear();
+                    reservation += reserve(segment.capacity(),
+                            reservation);
+                }
+            }
+            segment.flip();
+            if (channel != null) {
+                while (segment.hasRemaining()) {
+                    channel.write(segment);
+                }
+                for (long offset = 0; offset < length;
+                        offset += MAX_MAPPING_SIZE) {
+                    segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+                            offset, Math.min(MAX_MAPPING_SIZE,
+                                    length - offset)));
+                }
+            } else if (segment.limit() < segment.capacity() / 2) {
+                // do not pin a mostly empty segment for the value's lifetime
+                ByteBuffer exact = ByteBuffer.allocateDirect(segment.limit());
+                exact.put(segment).flip();
+                segments.add(exact);
+            } else if (segment.hasRemaining() || segments.isEmpty()) {
+                segments.add(segment);
+            }
+            Value value = new Value(segments.toArray(new ByteBuffer[0]),
+                    length, "\"" + Hex.encodeHexString(md5.digest()) + "\"",
+                    contentType, System.currentTimeMillis());
+            commit(key, value, reservation);
+            committed = true;
+            return value;
+        } finally {
+            if (!committed) {
+                synchronized (this) {
+                    reserved -= reservation;
+                }
+            }
+            if (channel != null) {
+                // mappings remain valid after the file is closed and deleted
+                channel.close();
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Claim bytes of capacity for a put which already holds own bytes,
+     * evicting values in LRU order to make room.  A put never reserves more
+     * than the capacity; values which outgrow it fail the length check.
+     *
+     * @return the number of bytes reserved
+     */
+    private synchronized long reserve(long bytes, long own)
+            throws IOException {
+        bytes = Math.min(bytes, capacity - own);
+        Iterator<Value> it = values.values().iterator();
+        while (size + reserved + bytes > capacity && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+        if (size + reserved + bytes > capacity) {
+            if (reserved == own) {
+                throw new TooLargeException("value exceeds capacity");
+            }
+            throw new FullException("capacity reserved by other puts");
+        }
+        reserved += bytes;
+        return bytes;
+    }
+
+    private synchronized void commit(String key, Value value,
+            long reservation) {
+        reserved -= reservation;
+        Value old = values.remove(key);
+        if (old != null) {
+            size -= old.length;
+        }
+        Iterator<Value> it = values.values().iterator();
+        while (size + value.length > capacity && it.hasNext()) {
+            size -= it.next().length;
+            it.remove();
+        }
+        values.put(key, value);
+        size += value.length;
+    }
+
+    synchronized Value get(String key) {
+        return values.get(key);
+    }
+
+    synchronized boolean delete(String key) {
+        Value value = values.remove(key);
+        if (value == null) {
+            return false;
+        }
+        size -= value.length;
+        return true;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private static int segmentSize(long contentLength, long length,
+            boolean spilling) {
+        if (spilling) {
+            return SEGMENT_SIZE;
+        }
+        if (contentLength >= 0) {
+            return (int) Math.max(1, Math.min(SEGMENT_SIZE,
+                    contentLength - length));
+        }
+        return length == 0 ? SMALL_SEGMENT_SIZE : SEGMENT_SIZE;
+    }
+
+    /** Read into buffer without a heap copy when is is Jetty's HttpInput. */
+    private static int read(InputStream is, ByteBuffer buffer)
+            throws IOException {
+        if (is instanceof HttpInput) {
+            return ((HttpInput) is).read(buffer);
+        }
+        byte[] buf = new byte[Math.min(buffer.remaining(), 8192)];
+        int r = is.read(buf);
+        if (r > 0) {
+            buffer.put(buf, 0, r);
+        }
+        return r;
+    }
+
+    static final class Value {
+        private final ByteBuffer[] segments;
+        private final long length;
+        private final String eTag;
+        private final String contentType;
+        private final long lastModified;
+
+        Value(ByteBuffer[] segments, long length, String eTag,
+                String contentType, long lastModified) {
+            this.segments = segments;
+            this.length = length;
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Write count bytes starting at offset.  Segments are written
+         * directly when os is Jetty's HttpOutput, avoiding heap copies.
+         */
+        void writeTo(OutputStream os, long offset, long count)
+                throws IOException {
+            byte[] buf = null;
+            for (ByteBuffer segment : segments) {
+                int segmentLength = segment.limit();
+                if (offset >= segmentLength) {
+                    offset -= segmentLength;
+                    continue;
+                }
+                if (count <= 0) {
+                    break;
+                }
+                int n = (int) Math.min(segmentLength - offset, count);
+                ByteBuffer slice = segment.duplicate();
+                slice.position((int) offset).limit((int) offset + n);
+                if (os instanceof HttpOutput) {
+                    ((HttpOutput) os).write(slice);
+                } else {
+                    if (buf == null) {
+                        buf = new byte[8192];
+                    }
+                    while (slice.hasRemaining()) {
+                        int chunk = Math.min(buf.length, slice.remaining());
+                        slice.get(buf, 0, chunk);
+                        os.write(buf, 0, chunk);
+                    }
+                }
+                offset = 0;
+                count -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.BytesRequestContent;
+
+/**
+ * Open-model load generator which issues requests at a constant arrival
+ * rate regardless of how quickly the server responds.  Latency is measured
+ * from when each request was scheduled to start rather than when it was
+ * sent, which corrects for coordinated omission: a stalled server is
+ * charged for the requests which queued behind the stall.  Requests are
+ * sent asynchronously so one scheduling thread can sustain high rates.
+ */
+final class LoadGenerator {
+    private static final long HIGHEST_TRACKABLE_NANOS =
+            TimeUnit.MINUTES.toNanos(10);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = {
+        50, 90, 99, 99.9, 99.99, 100,
+    };
+
+    private final URI target;
+    private final double rate;
+    private final long durationNanos;
+    private String method = "GET";
+    private byte[] body;
+    private int maxConnections = 64;
+    private long timeoutMs = 30 * 1000;
+
+    /**
+     * @param rate requests per second
+     * @param durationMs how long to issue requests for
+     */
+    LoadGenerator(URI target, double rate, long durationMs) {
+        if (!(rate > 0) || durationMs <= 0) {
+            throw new IllegalArgumentException(
+                    "rate and duration must be positive");
+        }
+        this.target = requireNonNull(target);
+        this.rate = rate;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMs);
+    }
+
+    LoadGenerator setMethod(String method) {
+        this.method = requireNonNull(method);
+        return this;
+    }
+
+    /** Send size zero-filled bytes as the body of each request. */
+    LoadGenerator setBodySize(int size) {
+        this.body = size > 0 ? new byte[size] : null;
+        return this;
+    }
+
+    LoadGenerator setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    LoadGenerator setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        return this;
+    }
+
+    Result run() throws Exception {
+        HttpClient client = new HttpClient();
+        client.setMaxConnectionsPerDestination(maxConnections);
+        // an open model must not push back on the schedule by queueing
+        client.setMaxRequestsQueuedPerDestination(Integer.MAX_VALUE);
+        client.setFollowRedirects(false);
+        client.start();
+        try {
+            return run(client);
+        } finally {
+            client.stop();
+        }
+    }
+
+    private Result run(HttpClient client) throws InterruptedException {
+        long intervalNanos = Math.max(1, (long) (1_000_000_000 / rate));
+        long count = Math.max(1, durationNanos / intervalNanos);
+        Recorder latency = new Recorder(HIGHEST_TRACKABLE_NANOS,
+                SIGNIFICANT_DIGITS);
+        Recorder serviceTime = new Recorder(HIGHEST_TRACKABLE_NANOS,
+                SIGNIFICANT_DIGITS);
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch((int) Math.min(count,
+                Integer.MAX_VALUE));
+
+        long start = System.nanoTime();
+        for (long i = 0; i < count; ++i) {
+            long intended = start + i * intervalNanos;
+            long delay = intended - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            long sent = System.nanoTime();
+            Request request = client.newRequest(target)
+                    .method(method)
+                    .timeout(timeoutMs, TimeUnit.MILLISECONDS);
+            if (body != null) {
+                request.body(new BytesRequestContent(body));
+            }
+            request.send(result -> {
+                long now = System.nanoTime();
+                if (result.isFailed()) {
+                    errors.incrementAndGet();
+                } else {
+                    statuses.computeIfAbsent(result.getResponse().getStatus(),
+                            status -> new LongAdder()).increment();
+                }
+                latency.recordValue(Math.min(now - intended,
+                        HIGHEST_TRACKABLE_NANOS));
+                serviceTime.recordValue(Math.min(now - sent,
+                        HIGHEST_TRACKABLE_NANOS));
+                done.countDown();
+            });
+        }
+        long scheduledNanos = System.nanoTime() - start;
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+
+        Map<Integer, Long> statusCounts = new TreeMap<>();
+        statuses.forEach((status, adder) ->
+                statusCounts.put(status, adder.sum()));
+        return new Result(count, errors.get(), statusCounts,
+                scheduledNanos, elapsedNanos, latency.getIntervalHistogram(),
+                serviceTime.getIntervalHistogram());
+    }
+
+    static final class Result {
+        private final long requests;
+        private final long errors;
+        private final Map<Integer, Long> statuses;
+        private final long scheduledNanos;
+        private final long elapsedNanos;
+        private final Histogram latency;
+        private final Histogram serviceTime;
+
+        Result(long requests, long errors, Map<Integer, Long> statuses,
+                long scheduledNanos, long elapsedNanos, Histogram latency,
+                Histogram serviceTime) {
+            this.requests = requests;
+            this.errors = errors;
+            this.statuses = statuses;
+            this.scheduledNanos = scheduledNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.serviceTime = serviceTime;
+        }
+
+        long getRequests() {
+            return requests;
+        }
+
+        /** Requests which failed without a response, e.g. timeouts. */
+        long getErrors() {
+            return errors;
+        }
+
+        /** Count of responses by status code. */
+        Map<Integer, Long> getStatuses() {
+            return statuses;
+        }
+
+        /** Latency from each request's scheduled start in nanoseconds. */
+        Histogram getLatency() {
+            return latency;
+        }
+
+        /** Latency from when each request was sent in nanoseconds. */
+        Histogram getServiceTime() {
+            return serviceTime;
+        }
+
+        void print(PrintStream out) {
+            out.printf("requests: %d in %.3f s (%.1f/s scheduled)%n",
+                    requests, elapsedNanos / 1e9,
+                    requests / (scheduledNanos / 1e9));
+            out.printf("errors: %d%n", errors);
+            statuses.forEach((status, count) ->
+                    out.printf("status %d: %d%n", status, count));
+            out.printf("%-10s %12s %12s%n", "percentile", "latency ms",
+                    "service ms");
+            for (double percentile : PERCENTILES) {
+                out.printf("%-10s %12.3f %12.3f%n", percentile,
+                        latency.getValueAtPercentile(percentile) / 1e6,
+                        serviceTime.getValueAtPercentile(percentile) / 1e6);
+            }
+        }
+    }
+}
@@ -18,17 +18,93 @@
 package org.gaul.httpbin;
 
 import java.net.URI;
+import java.util.Arrays;
 
 public final class Main {
+    private static final String LOAD_USAGE = "usage: load --rate r " +
+            "--duration s [--method m] [--body-size n] [--connections n] " +
+            "[--timeout ms] url";
+
     private Main() {
         throw new AssertionError("intentionally not implemented");
     }
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            runLoadGenerator(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        HttpBinHandler handler = new HttpBinHandler();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--seed") && i + 1 < args.length) {
+                handler.setSeed(Long.parseLong(args[++i]));
+            } else {
+                throw new IllegalArgumentException("usage: [--seed n]");
+            }
+        }
+
         // TODO: configurable
         URI httpBinEndpoint = URI.create("http://127.0.0.1:8080");
 
-        HttpBin httpBin = new HttpBin(httpBinEndpoint);
+        HttpBin httpBin = new HttpBin(httpBinEndpoint, handler);
         httpBin.start();
     }
+
+    /**
+     * Usage: load --rate requests/s --duration seconds [--method m]
+     * [--body-size bytes] [--connections n] [--timeout ms] url
+     */
+    private static void runLoadGenerator(String[] args) throws Exception {
+        URI target = null;
+        double rate = 0;
+        long durationMs = 0;
+        String method = "GET";
+        int bodySize = 0;
+        int connections = 64;
+        long timeoutMs = 30 * 1000;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].startsWith("--") && i + 1 >= args.length) {
+                throw new IllegalArgumentException(LOAD_USAGE);
+            }
+            switch (args[i]) {
+            case "--rate":
+                rate = Double.parseDouble(args[++i]);
+                break;
+            case "--duration":
+                durationMs = (long) (Double.parseDouble(args[++i]) * 1000);
+                break;
+            case "--method":
+                method = args[++i];
+                break;
+            case "--body-size":
+                bodySize = Integer.parseInt(args[++i]);
+                break;
+            case "--connections":
+                connections = Integer.parseInt(args[++i]);
+                break;
+            case "--timeout":
+                timeoutMs = Long.parseLong(args[++i]);
+                break;
+            default:
+                if (args[i].startsWith("--") || target != null) {
+                    throw new IllegalArgumentException(
+                            "unexpected argument: " + args[i]);
+                }
+                target = URI.create(args[i]);
+                break;
+            }
+        }
+        if (target == null) {
+            throw new IllegalArgumentException(LOAD_USAGE);
+        }
+
+        new LoadGenerator(target, rate, durationMs)
+                .setMethod(method)
+                .setBodySize(bodySize)
+                .setMaxConnections(connections)
+                .setTimeoutMs(timeoutMs)
+                .run()
+                .print(System.out);
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Server nonces for digest authentication.  Each nonce expires after a
+ * fixed lifetime and tracks the highest nonce count it has accepted so
+ * that replayed requests are rejected.  Nonces are kept in issue order, so
+ * issuing a nonce evicts expired nonces from the head of the queue and, when
+ * the cache is full, the oldest live nonce.
+ */
+final class NonceCache {
+    private static final int NONCE_BYTES = 16;
+
+    private final ConcurrentMap<String, Nonce> nonces =
+            new ConcurrentHashMap<>();
+    /** Issued nonces, oldest first; may include ones already removed. */
+    private final Queue<String> issued = new ConcurrentLinkedQueue<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long lifetimeNanos;
+    private final int maxNonces;
+
+    NonceCache(long lifetime, TimeUnit unit, int maxNonces) {
+        if (maxNonces <= 0) {
+            throw new IllegalArgumentException(
+                    "maxNonces must be positive: " + maxNonces);
+        }
+        this.lifetimeNanos = unit.toNanos(lifetime);
+        this.maxNonces = maxNonces;
+    }
+
+    /** Issue a new unpredictable nonce. */
+    String create() {
+        long now = System.nanoTime();
+        byte[] bytes = new byte[NONCE_BYTES];
+        random.nextBytes(bytes);
+        String nonce = Hex.encodeHexString(bytes);
+        nonces.put(nonce, new Nonce(now + lifetimeNanos));
+        issued.add(nonce);
+        evict(now);
+        return nonce;
+    }
+
+    /**
+     * Accept a use of nonce with nonceCount, which must exceed all counts
+     * previously accepted for it.  Pass -1 for clients which do not send a
+     * count; such nonces may be used once.
+     */
+    Status use(String nonce, long nonceCount) {
+        long now = System.nanoTime();
+        Nonce entry = nonces.get(nonce);
+        if (entry == null) {
+            return Status.STALE;
+        }
+        if (entry.expiresNanos - now <= 0) {
+            nonces.remove(nonce, entry);
+            return Status.STALE;
+        }
+        long count = nonceCount == -1 ? 1 : nonceCount;
+        while (true) {
+            long last = entry.lastCount.get();
+            if (count <= last) {
+                return Status.REPLAYED;
+            }
+            if (entry.lastCount.compareAndSet(last, count)) {
+                return Status.VALID;
+            }
+        }
+    }
+
+    int size() {
+        return nonces.size();
+    }
+
+    /** Remove expired nonces and the oldest nonces beyond the limit. */
+    private void evict(long now) {
+        while (true) {
+            String oldest = issued.peek();
+            if (oldest == null) {
+                return;
+            }
+            Nonce entry = nonces.get(oldest);
+            if (entry != null && entry.expiresNanos - now > 0 &&
+                    nonces.size() <= maxNonces) {
+                return;
+            }
+            if (issued.remove(oldest)) {
+                nonces.remove(oldest);
+            }
+        }
+    }
+
+    enum Status {
+        VALID,
+        /** Unknown or expired; the client should retry with a new nonce. */
+        STALE,
+        REPLAYED,
+    }
+
+    private static final class Nonce {
+        private final long expiresNanos;
+        private final AtomicLong lastCount = new AtomicLong();
+
+        Nonce(long expiresNanos) {
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.codec.binary.Hex;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Applies the framing controls shared by payload endpoints:
+ *
+ * <ul>
+ * <li>chunkSize: write and flush exactly this many bytes at a time so that
+ *     each chunk on the wire has this size
+ * <li>framing: chunked or length to force Transfer-Encoding: chunked or
+ *     Content-Length
+ * <li>trailer: crc32c or sha256 to send a checksum trailer, which implies
+ *     chunked framing
+ * <li>bufferSize: response buffer size hint
+ * </ul>
+ *
+ * chunkSize and bufferSize are each allocated per request so both are
+ * limited to MAX_BUFFER_SIZE.
+ */
+final class PayloadOutputStream extends FilterOutputStream {
+    static final String CRC32C_TRAILER = "X-Checksum-CRC32C";
+    static final String SHA256_TRAILER = "X-Checksum-SHA256";
+    static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private final byte[] chunk;
+    private int chunkLength;
+    private final CRC32C crc32c;
+    private final MessageDigest sha256;
+
+    private PayloadOutputStream(OutputStream os, int chunkSize,
+            CRC32C crc32c, MessageDigest sha256) {
+        super(os);
+        this.chunk = chunkSize > 0 ? new byte[chunkSize] : null;
+        this.crc32c = crc32c;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Configure the response framing from the request parameters and wrap
+     * os.  Must be called before the response is committed.
+     *
+     * @param contentLength length of the payload which will be written
+     * @param defaultLength whether to send Content-Length when the request
+     *     does not specify framing
+     * @param defaultChunkSize chunk size when the request does not specify
+     *     one, or zero to leave flushing to the container
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    static PayloadOutputStream create(HttpServletRequest request,
+            HttpServletResponse response, OutputStream os,
+            long contentLength, boolean defaultLength, int defaultChunkSize)
+            throws IOException {
+        int chunkSize = Utils.getIntParameter(request, "chunkSize",
+                defaultChunkSize);
+        if (chunkSize < 0 || chunkSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException(
+                    "chunkSize out of range: " + chunkSize);
+        }
+        if (request.getParameter("bufferSize") != null) {
+            int bufferSize = Utils.getIntParameter(request, "bufferSize", 0);
+            if (bufferSize < 1 || bufferSize > MAX_BUFFER_SIZE) {
+                throw new IllegalArgumentException(
+                        "bufferSize out of range: " + bufferSize);
+            }
+            response.setBufferSize(bufferSize);
+        }
+
+        String trailer = request.getParameter("trailer");
+        CRC32C crc32c = null;
+        MessageDigest sha256 = null;
+        if (trailer == null) {
+            // no trailer
+        } else if (trailer.equals("crc32c")) {
+            crc32c = new CRC32C();
+        } else if (trailer.equals("sha256")) {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            }
+        } else {
+            throw new IllegalArgumentException("unknown trailer: " + trailer);
+        }
+
+        String framing = request.getParameter("framing");
+        boolean chunked;
+        if (framing == null) {
+            chunked = trailer != null || !defaultLength;
+        } else if (framing.equals("chunked")) {
+            chunked = true;
+        } else if (framing.equals("length")) {
+            if (trailer != null) {
+                throw new IllegalArgumentException(
+                        "trailers require chunked framing");
+            }
+            chunked = false;
+        } else {
+            throw new IllegalArgumentException("unknown framing: " + framing);
+        }
+
+        PayloadOutputStream pos = new PayloadOutputStream(os, chunkSize,
+                crc32c, sha256);
+        if (trailer != null) {
+            String name = crc32c != null ? CRC32C_TRAILER : SHA256_TRAILER;
+            response.setHeader("Trailer", name);
+            try {
+                // supplier runs after the last chunk has been written
+                response.setTrailerFields(() -> Collections.singletonMap(
+                        name, pos.checksum()));
+            } catch (IllegalStateException ise) {
+                throw new IllegalArgumentException(
+                        "trailers not supported", ise);
+            }
+        }
+        if (!chunked) {
+            response.setContentLengthLong(contentLength);
+        } else if (framing != null || trailer != null) {
+            // commit without a length so the container cannot add one
+            os.flush();
+        }
+        return pos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (crc32c != null) {
+            crc32c.update(b, off, len);
+        } else if (sha256 != null) {
+            sha256.update(b, off, len);
+        }
+        if (chunk == null) {
+            out.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int count = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, count);
+            chunkLength += count;
+            off += count;
+            len -= count;
+            if (chunkLength == chunk.length) {
+                flushChunk();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (chunkLength > 0) {
+            flushChunk();
+        } else {
+            out.flush();
+        }
+    }
+
+    /** Write any partial chunk without closing the underlying stream. */
+    void finish() throws IOException {
+        if (chunkLength > 0) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        out.write(chunk, 0, chunkLength);
+        out.flush();
+        chunkLength = 0;
+    }
+
+    private String checksum() {
+        if (crc32c != null) {
+            return String.format("%08x", crc32c.getValue());
+        }
+        return Hex.encodeHexString(sha256.digest());
+    }
+}
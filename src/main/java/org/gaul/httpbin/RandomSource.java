@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Derives an independent Random for each request from a server-wide seed,
+ * the route and the request's sequence number on that route.  Requests to
+ * different routes do not perturb each other, so the nth request to a
+ * route sees the same stream in every run regardless of how other routes
+ * interleave.
+ */
+final class RandomSource {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+    private final Map<String, AtomicLong> sequences =
+            new ConcurrentHashMap<>();
+
+    RandomSource(long seed) {
+        this.seed = seed;
+    }
+
+    /** Return the Random for the next request to route. */
+    Random next(String route) {
+        long sequence = sequences.computeIfAbsent(route,
+                key -> new AtomicLong()).getAndIncrement();
+        return new Random(mix(mix(seed ^ route.hashCode() * GOLDEN_GAMMA) +
+                sequence * GOLDEN_GAMMA));
+    }
+
+    /** Return the number of routes which have drawn a Random. */
+    int size() {
+        return sequences.size();
+    }
+
+    /** SplitMix64 finalizer, as used by SplittableRandom. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-key token buckets implemented with the generic cell rate algorithm.
+ * Each bucket is a single theoretical arrival time updated by CAS, so
+ * admitting a request is lock-free and rejecting one is a plain read.
+ * Buckets which have refilled completely carry no state and are evicted
+ * periodically.  New keys are rejected while maxBuckets buckets are live.
+ */
+final class RateLimiter {
+    /** Thrown when a new key arrives while every bucket is in use. */
+    static final class FullException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        FullException(String message) {
+            super(message);
+        }
+    }
+
+    static final int DEFAULT_MAX_BUCKETS = 64 * 1024;
+    private static final long SWEEP_INTERVAL = 1024;
+    private static final long EVICTED = Long.MIN_VALUE;
+    /** Leave headroom so that nanoTime sums cannot overflow. */
+    private static final long MAX_CAPACITY_NANOS = Long.MAX_VALUE / 2;
+
+    private final ConcurrentMap<String, Bucket> buckets =
+            new ConcurrentHashMap<>();
+    private final AtomicLong operations = new AtomicLong();
+    private final int maxBuckets;
+
+    RateLimiter() {
+        this(DEFAULT_MAX_BUCKETS);
+    }
+
+    RateLimiter(int maxBuckets) {
+        if (maxBuckets <= 0) {
+            throw new IllegalArgumentException(
+                    "maxBuckets must be positive: " + maxBuckets);
+        }
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Try to take one token from the bucket for key which refills at rps
+     * tokens per second up to burst tokens.  Changing rps or burst for a key
+     * resets its bucket.
+     *
+     * @throws IllegalArgumentException if rps or burst is not positive or
+     *         the bucket would take too long to fill
+     * @throws FullException if key is new and maxBuckets buckets have not
+     *         yet refilled; concurrent new keys may briefly overshoot
+     */
+    Decision acquire(String key, double rps, int burst) {
+        if (!(rps > 0) || burst <= 0) {
+            throw new IllegalArgumentException(
+                    "rps and burst must be positive");
+        }
+        long interval = Math.max(1, (long) (1_000_000_000 / rps));
+        if (interval > MAX_CAPACITY_NANOS / burst) {
+            throw new IllegalArgumentException(
+                    "burst / rps is too large: " + burst + " / " + rps);
+        }
+        long capacity = interval * burst;
+        long now = System.nanoTime();
+        if (operations.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            sweep(now);
+        }
+
+        while (true) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                // full buckets are only reclaimed by the periodic sweep
+                if (buckets.size() >= maxBuckets) {
+                    throw new FullException("too many keys: " + maxBuckets);
+                }
+                bucket = new Bucket(interval, burst, now);
+                Bucket existing = buckets.putIfAbsent(key, bucket);
+                if (existing != null) {
+                    bucket = existing;
+                }
+            }
+            if (bucket.interval != interval || bucket.burst != burst) {
+                buckets.replace(key, bucket, new Bucket(interval, burst, now));
+                continue;
+            }
+
+            long tat = bucket.tat.get();
+            if (tat == EVICTED) {
+                buckets.remove(key, bucket);
+                continue;
+            }
+            // compare nanoTime values by difference to tolerate overflow
+            long start = tat - now > 0 ? tat : now;
+            long newTat = start + interval;
+            long wait = newTat - now - capacity;
+            if (wait > 0) {
+                return new Decision(false, burst, 0, wait, start - now);
+            }
+            if (bucket.tat.compareAndSet(tat, newTat)) {
+                return new Decision(true, burst,
+                        (int) ((capacity - (newTat - now)) / interval), 0,
+                        newTat - now);
+            }
+        }
+    }
+
+    /** Remove buckets which are full and thus equivalent to new buckets. */
+    private void sweep(long now) {
+        buckets.values().removeIf(bucket -> {
+            long tat = bucket.tat.get();
+            return tat != EVICTED && tat - now <= 0 &&
+                    bucket.tat.compareAndSet(tat, EVICTED);
+        });
+    }
+
+    private static final class Bucket {
+        private final long interval;
+        private final int burst;
+        /** Theoretical arrival time of the next request in nanoTime. */
+        private final AtomicLong tat;
+
+        Bucket(long interval, int burst, long now) {
+            this.interval = interval;
+            this.burst = burst;
+            this.tat = new AtomicLong(now);
+        }
+    }
+
+    static final class Decision {
+        private final boolean allowed;
+        private final int limit;
+        private final int remaining;
+        private final long retryAfterNanos;
+        private final long resetNanos;
+
+        Decision(boolean allowed, int limit, int remaining,
+                long retryAfterNanos, long resetNanos) {
+            this.allowed = allowed;
+            this.limit = limit;
+            this.remaining = remaining;
+            this.retryAfterNanos = retryAfterNanos;
+            this.resetNanos = resetNanos;
+        }
+
+        boolean isAllowed() {
+            return allowed;
+        }
+
+        int getLimit() {
+            return limit;
+        }
+
+        int getRemaining() {
+            return remaining;
+        }
+
+        /** Time until a token is available when rejected. */
+        long getRetryAfterNanos() {
+            return retryAfterNanos;
+        }
+
+        /** Time until the bucket is full again. */
+        long getResetNanos() {
+            return resetNanos;
+        }
+    }
+}
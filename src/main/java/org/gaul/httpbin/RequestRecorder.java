@@ -0,0 +1,323 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.codec.binary.Hex;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Records incoming requests into a bounded ring buffer and optionally appends
+ * them as NDJSON to a memory-mapped file.  Recording never blocks: writers
+ * claim a slot with a single atomic increment and readers skip slots which
+ * were overwritten while they were being read.
+ */
+public final class RequestRecorder implements Closeable {
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong sequence = new AtomicLong();
+    private final int maxBodyPrefix;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final AtomicLong filePosition = new AtomicLong();
+
+    public RequestRecorder(int capacity, int maxBodyPrefix) {
+        this(checkCapacity(capacity), checkMaxBodyPrefix(maxBodyPrefix),
+                null, null);
+    }
+
+    /**
+     * Create a recorder which also appends every request to path until
+     * maxFileSize bytes have been written.
+     */
+    public RequestRecorder(int capacity, int maxBodyPrefix, Path path,
+            int maxFileSize) throws IOException {
+        this(checkCapacity(capacity), checkMaxBodyPrefix(maxBodyPrefix),
+                FileChannel.open(requireNonNull(path),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE),
+                maxFileSize);
+    }
+
+    private RequestRecorder(int capacity, int maxBodyPrefix,
+            FileChannel channel, int maxFileSize) throws IOException {
+        this(capacity, maxBodyPrefix, channel, map(channel, maxFileSize));
+    }
+
+    private RequestRecorder(int capacity, int maxBodyPrefix,
+            FileChannel channel, MappedByteBuffer mapped) {
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.maxBodyPrefix = maxBodyPrefix;
+        this.channel = channel;
+        this.mapped = mapped;
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "capacity must be positive: " + capacity);
+        }
+        return capacity;
+    }
+
+    private static int checkMaxBodyPrefix(int maxBodyPrefix) {
+        if (maxBodyPrefix < 0) {
+            throw new IllegalArgumentException(
+                    "maxBodyPrefix must be non-negative: " + maxBodyPrefix);
+        }
+        return maxBodyPrefix;
+    }
+
+    /** Map channel, closing it if the mapping fails. */
+    private static MappedByteBuffer map(FileChannel channel, int maxFileSize)
+            throws IOException {
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    maxFileSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Wrap a request body so that its digest and prefix are captured. */
+    BodyCapture capture(InputStream is) {
+        return new BodyCapture(is, maxBodyPrefix);
+    }
+
+    void record(HttpServletRequest request, BodyCapture body) {
+        List<String[]> headers = new ArrayList<>();
+        for (String name : Collections.list(request.getHeaderNames())) {
+            for (String value : Collections.list(request.getHeaders(name))) {
+                headers.add(new String[] {name, value});
+            }
+        }
+        long seq = sequence.getAndIncrement();
+        Entry entry = new Entry(seq, System.currentTimeMillis(),
+                request.getMethod(), request.getRequestURI(),
+                request.getQueryString(), headers, body.length,
+                Hex.encodeHexString(body.digest.digest()),
+                Arrays.copyOf(body.prefix, body.prefixLength));
+        int slot = (int) (seq % ring.length());
+        while (true) {
+            // a delayed writer must not replace a newer entry in its slot
+            Entry current = ring.get(slot);
+            if ((current != null && current.seq > seq) ||
+                    ring.compareAndSet(slot, current, entry)) {
+                break;
+            }
+        }
+        if (mapped != null) {
+            append(entry);
+        }
+    }
+
+    /** Sequence number which the next recorded request will receive. */
+    long nextSequence() {
+        return sequence.get();
+    }
+
+    /** Return retained entries with a sequence number of at least since. */
+    List<Entry> since(long since) {
+        long end = sequence.get();
+        long start = Math.max(since, end - ring.length());
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, end - start));
+        for (long seq = Math.max(start, 0); seq < end; ++seq) {
+            Entry entry = ring.get((int) (seq % ring.length()));
+            // slot may be unpublished or already overwritten by a newer entry
+            if (entry != null && entry.seq == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /** Write retained entries as replayable NDJSON, one request per line. */
+    void export(long since, OutputStream os) throws IOException {
+        for (Entry entry : since(since)) {
+            os.write(entry.toJSON().toString().getBytes(
+                    StandardCharsets.UTF_8));
+            os.write('\n');
+        }
+    }
+
+    private void append(Entry entry) {
+        byte[] line = (entry.toJSON().toString() + "\n").getBytes(
+                StandardCharsets.UTF_8);
+        long offset;
+        do {
+            offset = filePosition.get();
+            if (offset + line.length > mapped.capacity()) {
+                // file is full; keep recording into the ring buffer only
+                return;
+            }
+        } while (!filePosition.compareAndSet(offset, offset + line.length));
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) offset);
+        buffer.put(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            mapped.force();
+            channel.truncate(filePosition.get());
+            channel.close();
+        }
+    }
+
+    static final class Entry {
+        private final long seq;
+        private final long timestamp;
+        private final String method;
+        private final String uri;
+        private final String query;
+        private final List<String[]> headers;
+        private final long bodyLength;
+        private final String bodySha256;
+        private final byte[] bodyPrefix;
+
+        Entry(long seq, long timestamp, String method, String uri,
+                String query, List<String[]> headers, long bodyLength,
+                String bodySha256, byte[] bodyPrefix) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.method = method;
+            this.uri = uri;
+            this.query = query;
+            this.headers = headers;
+            this.bodyLength = bodyLength;
+            this.bodySha256 = bodySha256;
+            this.bodyPrefix = bodyPrefix;
+        }
+
+        JSONObject toJSON() {
+            JSONArray headerArray = new JSONArray();
+            for (String[] header : headers) {
+                headerArray.put(new JSONArray(header));
+            }
+            JSONObject object = new JSONObject();
+            object.put("seq", seq);
+            object.put("timestamp", timestamp);
+            object.put("method", method);
+            object.put("uri", uri);
+            object.put("query", query == null ? JSONObject.NULL : query);
+            object.put("headers", headerArray);
+            object.put("bodyLength", bodyLength);
+            object.put("bodySha256", bodySha256);
+            object.put("body", Base64.getEncoder().encodeToString(
+                    bodyPrefix));
+            object.put("bodyTruncated", bodyPrefix.length < bodyLength);
+            return object;
+        }
+    }
+
+    static final class BodyCapture extends FilterInputStream {
+        private final MessageDigest digest;
+        private final byte[] prefix;
+        private int prefixLength;
+        private long length;
+
+        BodyCapture(InputStream is, int maxBodyPrefix) {
+            super(is);
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            }
+            prefix = new byte[maxBodyPrefix];
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                digest.update((byte) b);
+                if (prefixLength < prefix.length) {
+                    prefix[prefixLength++] = (byte) b;
+                }
+                ++length;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = in.read(b, off, len);
+            if (r > 0) {
+                update(b, off, r);
+            }
+            return r;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // route bytes through read so that the digest stays complete
+            byte[] buf = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (r == -1) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void update(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+            int copy = Math.min(len, prefix.length - prefixLength);
+            if (copy > 0) {
+                System.arraycopy(b, off, prefix, prefixLength, copy);
+                prefixLength += copy;
+            }
+            length += len;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Settings which /admin/config can change while the server runs.  Instances
+ * are immutable so each request sees one consistent profile.
+ */
+final class RuntimeConfig {
+    static final RuntimeConfig DEFAULT = new RuntimeConfig(10 * 1000, 0, 0,
+            503, 0);
+
+    private final long maxDelayMs;
+    private final long throttleBytesPerSecond;
+    private final double faultRate;
+    private final int faultStatus;
+    private final long faultDelayMs;
+
+    private RuntimeConfig(long maxDelayMs, long throttleBytesPerSecond,
+            double faultRate, int faultStatus, long faultDelayMs) {
+        this.maxDelayMs = maxDelayMs;
+        this.throttleBytesPerSecond = throttleBytesPerSecond;
+        this.faultRate = faultRate;
+        this.faultStatus = faultStatus;
+        this.faultDelayMs = faultDelayMs;
+    }
+
+    /** Upper bound on /delay/:n. */
+    long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    /** Response bandwidth limit per request, or zero for no limit. */
+    long getThrottleBytesPerSecond() {
+        return throttleBytesPerSecond;
+    }
+
+    /** Fraction of requests which fail with the fault status. */
+    double getFaultRate() {
+        return faultRate;
+    }
+
+    int getFaultStatus() {
+        return faultStatus;
+    }
+
+    /** Latency added to every request, at most getMaxDelayMs(). */
+    long getFaultDelayMs() {
+        return faultDelayMs;
+    }
+
+    /**
+     * Return a copy with the settings present in changes replaced.
+     *
+     * @throws IllegalArgumentException if a setting is unknown or invalid
+     */
+    RuntimeConfig update(JSONObject changes) {
+        long newMaxDelayMs = maxDelayMs;
+        long newThrottle = throttleBytesPerSecond;
+        double newFaultRate = faultRate;
+        int newFaultStatus = faultStatus;
+        long newFaultDelayMs = faultDelayMs;
+        try {
+            for (String key : changes.keySet()) {
+                switch (key) {
+                case "maxDelayMs":
+                    newMaxDelayMs = changes.getLong(key);
+                    break;
+                case "throttleBytesPerSecond":
+                    newThrottle = changes.getLong(key);
+                    break;
+                case "faultRate":
+                    newFaultRate = changes.getDouble(key);
+                    break;
+                case "faultStatus":
+                    newFaultStatus = changes.getInt(key);
+                    break;
+                case "faultDelayMs":
+                    newFaultDelayMs = changes.getLong(key);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "unknown setting: " + key);
+                }
+            }
+        } catch (JSONException je) {
+            throw new IllegalArgumentException(je);
+        }
+        if (newMaxDelayMs < 0 || newThrottle < 0 || newFaultDelayMs < 0 ||
+                !(newFaultRate >= 0 && newFaultRate <= 1) ||
+                newFaultStatus < 400 || newFaultStatus > 599 ||
+                newFaultDelayMs > newMaxDelayMs) {
+            throw new IllegalArgumentException("invalid settings: " +
+                    changes);
+        }
+        return new RuntimeConfig(newMaxDelayMs, newThrottle, newFaultRate,
+                newFaultStatus, newFaultDelayMs);
+    }
+
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("maxDelayMs", maxDelayMs);
+        json.put("throttleBytesPerSecond", throttleBytesPerSecond);
+        json.put("faultRate", faultRate);
+        json.put("faultStatus", faultStatus);
+        json.put("faultDelayMs", faultDelayMs);
+        return json;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Generates a self-signed certificate for a TLS connector.  The JDK has no
+ * public API to build certificates so this encodes a minimal X.509 v3
+ * certificate in DER and signs it with the standard Signature API.
+ */
+final class SelfSignedKeyStore {
+    static final String ALIAS = "httpbin";
+
+    private static final int KEY_SIZE = 2048;
+    private static final int VALIDITY_DAYS = 3650;
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String COMMON_NAME = "2.5.4.3";
+    private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_BIT_STRING = 0x03;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_NULL = 0x05;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_UTF8_STRING = 0x0c;
+    private static final int TAG_UTC_TIME = 0x17;
+    private static final int TAG_GENERALIZED_TIME = 0x18;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_DNS_NAME = 0x82;
+    private static final int TAG_IP_ADDRESS = 0x87;
+    private static final int TAG_VERSION = 0xa0;
+    private static final int TAG_EXTENSIONS = 0xa3;
+
+    private SelfSignedKeyStore() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    static KeyStore create(String host, String password) throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(KEY_SIZE);
+            KeyPair keyPair = generator.generateKeyPair();
+
+            byte[] algorithm = der(TAG_SEQUENCE, oid(SHA256_WITH_RSA),
+                    der(TAG_NULL));
+            byte[] name = der(TAG_SEQUENCE, der(TAG_SET, der(TAG_SEQUENCE,
+                    oid(COMMON_NAME), der(TAG_UTF8_STRING,
+                            host.getBytes(StandardCharsets.UTF_8)))));
+            ZonedDateTime notBefore = ZonedDateTime.now(ZoneOffset.UTC)
+                    .truncatedTo(ChronoUnit.SECONDS).minusDays(1);
+            byte[] tbsCertificate = der(TAG_SEQUENCE,
+                    der(TAG_VERSION, der(TAG_INTEGER, new byte[] {2})),
+                    der(TAG_INTEGER, new BigInteger(64, new SecureRandom())
+                            .add(BigInteger.ONE).toByteArray()),
+                    algorithm,
+                    name,
+                    der(TAG_SEQUENCE, time(notBefore),
+                            time(notBefore.plusDays(VALIDITY_DAYS))),
+                    name,
+                    keyPair.getPublic().getEncoded(),
+                    der(TAG_EXTENSIONS, der(TAG_SEQUENCE, der(TAG_SEQUENCE,
+                            oid(SUBJECT_ALT_NAME),
+                            der(TAG_OCTET_STRING, subjectAltNames(host))))));
+
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(tbsCertificate);
+            byte[] signatureBits = signature.sign();
+            byte[] bitString = new byte[signatureBits.length + 1];
+            System.arraycopy(signatureBits, 0, bitString, 1,
+                    signatureBits.length);
+            byte[] encoded = der(TAG_SEQUENCE, tbsCertificate, algorithm,
+                    der(TAG_BIT_STRING, bitString));
+
+            Certificate certificate = CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(encoded));
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(ALIAS, keyPair.getPrivate(),
+                    password.toCharArray(), new Certificate[] {certificate});
+            return keyStore;
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    /** Cover localhost and the loopback address as well as host. */
+    private static byte[] subjectAltNames(String host) throws IOException {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        names.write(der(TAG_DNS_NAME,
+                "localhost".getBytes(StandardCharsets.US_ASCII)));
+        names.write(der(TAG_IP_ADDRESS, new byte[] {127, 0, 0, 1}));
+        if (!host.equals("localhost") && !host.equals("127.0.0.1")) {
+            if (Character.isDigit(host.charAt(0)) || host.contains(":")) {
+                // literal addresses are parsed without a DNS lookup
+                names.write(der(TAG_IP_ADDRESS, InetAddress.getByName(
+                        host).getAddress()));
+            } else {
+                names.write(der(TAG_DNS_NAME,
+                        host.getBytes(StandardCharsets.US_ASCII)));
+            }
+        }
+        return der(TAG_SEQUENCE, names.toByteArray());
+    }
+
+    /** RFC 5280 requires UTCTime for dates before 2050. */
+    private static byte[] time(ZonedDateTime time) {
+        if (time.getYear() < 2050) {
+            return der(TAG_UTC_TIME, DateTimeFormatter.ofPattern(
+                    "yyMMddHHmmss'Z'").format(time).getBytes(
+                    StandardCharsets.US_ASCII));
+        }
+        return der(TAG_GENERALIZED_TIME, DateTimeFormatter.ofPattern(
+                "yyyyMMddHHmmss'Z'").format(time).getBytes(
+                StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] oid(String oid) {
+        String[] arcs = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+        for (int i = 2; i < arcs.length; ++i) {
+            long arc = Long.parseLong(arcs[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(arc | 1);
+            for (shift -= shift % 7; shift > 0; shift -= 7) {
+                out.write((int) ((arc >>> shift) & 0x7f) | 0x80);
+            }
+            out.write((int) (arc & 0x7f));
+        }
+        return der(TAG_OID, out.toByteArray());
+    }
+
+    /** Encode a DER tag-length-value from the concatenated contents. */
+    private static byte[] der(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (39 - Integer.numberOfLeadingZeros(length)) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; --i) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+}
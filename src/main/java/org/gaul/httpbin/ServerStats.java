@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.io.ArrayByteBufferPool;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.json.JSONObject;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Samples Jetty and JVM metrics for /stats.  Samples are taken lazily and
+ * reused for the sample interval so that polling /stats under load costs
+ * little more than serving a cached document.  Add as a bean to the server
+ * so that the handler can find it and so that stopping the server removes
+ * the JFR hook.
+ */
+final class ServerStats extends AbstractLifeCycle {
+    static final long DEFAULT_SAMPLE_INTERVAL_MS = 1000;
+
+    private final Server server;
+    private final long sampleIntervalNanos;
+    private final Runnable flightRecorderHook = this::emitEvent;
+    // guarded by this
+    private boolean flightRecorderEvents;
+    private boolean running;
+    private boolean hookAdded;
+    private volatile JSONObject sample;
+    private volatile long sampleNanos;
+
+    ServerStats(Server server, long sampleIntervalMs) {
+        this.server = server;
+        this.sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                sampleIntervalMs);
+    }
+
+    /**
+     * Return the latest sample, taking a new one if it is older than the
+     * sample interval.  Callers must not modify the result.
+     */
+    JSONObject get() {
+        long now = System.nanoTime();
+        JSONObject current = sample;
+        if (current == null || now - sampleNanos >= sampleIntervalNanos) {
+            current = sample();
+            sample = current;
+            sampleNanos = now;
+        }
+        return current;
+    }
+
+    /**
+     * Emit a periodic org.gaul.httpbin.Stats event to any JFR recording
+     * which enables it while started.  Events cost nothing while no
+     * recording is active.
+     */
+    synchronized void setFlightRecorderEvents(boolean enabled) {
+        flightRecorderEvents = enabled;
+        updateHook();
+    }
+
+    @Override
+    protected synchronized void doStart() {
+        running = true;
+        updateHook();
+    }
+
+    @Override
+    protected synchronized void doStop() {
+        running = false;
+        updateHook();
+    }
+
+    /** Must hold this. */
+    private void updateHook() {
+        boolean add = flightRecorderEvents && running;
+        if (add && !hookAdded) {
+            FlightRecorder.addPeriodicEvent(StatsEvent.class,
+                    flightRecorderHook);
+        } else if (!add && hookAdded) {
+            FlightRecorder.removePeriodicEvent(flightRecorderHook);
+        }
+        hookAdded = add;
+    }
+
+    private JSONObject sample() {
+        JSONObject json = new JSONObject();
+        json.put("timestamp", System.currentTimeMillis());
+        json.put("uptimeMs",
+                ManagementFactory.getRuntimeMXBean().getUptime());
+
+        StatisticsHandler statistics = server.getChildHandlerByClass(
+                StatisticsHandler.class);
+        if (statistics != null) {
+            JSONObject requests = new JSONObject();
+            requests.put("total", statistics.getRequests());
+            requests.put("active", statistics.getRequestsActive());
+            requests.put("activeMax", statistics.getRequestsActiveMax());
+            requests.put("timeMeanMs", statistics.getRequestTimeMean());
+            requests.put("timeMaxMs", statistics.getRequestTimeMax());
+            requests.put("asyncWaiting",
+                    statistics.getAsyncRequestsWaiting());
+            requests.put("responses1xx", statistics.getResponses1xx());
+            requests.put("responses2xx", statistics.getResponses2xx());
+            requests.put("responses3xx", statistics.getResponses3xx());
+            requests.put("responses4xx", statistics.getResponses4xx());
+            requests.put("responses5xx", statistics.getResponses5xx());
+            requests.put("responsesThrown",
+                    statistics.getResponsesThrown());
+            requests.put("responseBytes",
+                    statistics.getResponsesBytesTotal());
+            json.put("requests", requests);
+        }
+
+        AdmissionHandler admission = server.getChildHandlerByClass(
+                AdmissionHandler.class);
+        if (admission != null) {
+            JSONObject object = new JSONObject();
+            object.put("limit", admission.getLimit());
+            object.put("inFlight", admission.getInFlight());
+            object.put("queued", admission.getQueued());
+            object.put("rejected", admission.getRejected());
+            json.put("admission", object);
+        }
+
+        json.put("connections", sampleConnections());
+
+        ThreadPool threadPool = server.getThreadPool();
+        if (threadPool instanceof QueuedThreadPool) {
+            QueuedThreadPool pool = (QueuedThreadPool) threadPool;
+            JSONObject object = new JSONObject();
+            object.put("threads", pool.getThreads());
+            object.put("minThreads", pool.getMinThreads());
+            object.put("maxThreads", pool.getMaxThreads());
+            object.put("idle", pool.getIdleThreads());
+            object.put("busy", pool.getBusyThreads());
+            object.put("queueSize", pool.getQueueSize());
+            object.put("utilization", pool.getUtilizationRate());
+            json.put("threadPool", object);
+        }
+
+        json.put("memory", sampleMemory());
+        json.put("gc", sampleGarbageCollectors());
+        return json;
+    }
+
+    private JSONObject sampleConnections() {
+        JSONObject json = new JSONObject();
+        long open = 0;
+        long total = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        long messagesIn = 0;
+        long messagesOut = 0;
+        long selectors = 0;
+        long selectedKeys = 0;
+        long heapBuffers = 0;
+        long directBuffers = 0;
+        for (Connector connector : server.getConnectors()) {
+            ConnectionStatistics statistics = connector.getBean(
+                    ConnectionStatistics.class);
+            if (statistics != null) {
+                open += statistics.getConnections();
+                total += statistics.getConnectionsTotal();
+                bytesIn += statistics.getReceivedBytes();
+                bytesOut += statistics.getSentBytes();
+                messagesIn += statistics.getReceivedMessages();
+                messagesOut += statistics.getSentMessages();
+            }
+            if (connector instanceof ServerConnector) {
+                ServerConnector serverConnector = (ServerConnector) connector;
+                selectors += serverConnector.getSelectorManager()
+                        .getSelectorCount();
+                selectedKeys += serverConnector.getSelectorManager()
+                        .getTotalKeys();
+            }
+            ByteBufferPool bufferPool = connector.getByteBufferPool();
+            if (bufferPool instanceof ArrayByteBufferPool) {
+                ArrayByteBufferPool pool = (ArrayByteBufferPool) bufferPool;
+                heapBuffers += pool.getHeapMemory();
+                directBuffers += pool.getDirectMemory();
+            }
+        }
+        json.put("open", open);
+        json.put("total", total);
+        json.put("bytesIn", bytesIn);
+        json.put("bytesOut", bytesOut);
+        json.put("messagesIn", messagesIn);
+        json.put("messagesOut", messagesOut);
+        json.put("selectors", selectors);
+        json.put("selectorKeys", selectedKeys);
+        json.put("bufferPoolHeapBytes", heapBuffers);
+        json.put("bufferPoolDirectBytes", directBuffers);
+        return json;
+    }
+
+    private static JSONObject sampleMemory() {
+        JSONObject json = new JSONObject();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage();
+        json.put("heapUsed", heap.getUsed());
+        json.put("heapCommitted", heap.getCommitted());
+        json.put("heapMax", heap.getMax());
+        json.put("nonHeapUsed", ManagementFactory.getMemoryMXBean()
+                .getNonHeapMemoryUsage().getUsed());
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+                BufferPoolMXBean.class)) {
+            JSONObject object = new JSONObject();
+            object.put("count", pool.getCount());
+            object.put("used", pool.getMemoryUsed());
+            object.put("capacity", pool.getTotalCapacity());
+            json.put(pool.getName(), object);
+        }
+        return json;
+    }
+
+    private static JSONObject sampleGarbageCollectors() {
+        JSONObject json = new JSONObject();
+        long count = 0;
+        long timeMs = 0;
+        for (GarbageCollectorMXBean collector :
+                ManagementFactory.getGarbageCollectorMXBeans()) {
+            JSONObject object = new JSONObject();
+            object.put("count", collector.getCollectionCount());
+            object.put("timeMs", collector.getCollectionTime());
+            json.put(collector.getName(), object);
+            count += Math.max(0, collector.getCollectionCount());
+            timeMs += Math.max(0, collector.getCollectionTime());
+        }
+        json.put("count", count);
+        json.put("timeMs", timeMs);
+        return json;
+    }
+
+    private void emitEvent() {
+        StatsEvent event = new StatsEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        JSONObject json = get();
+        JSONObject requests = json.optJSONObject("requests");
+        if (requests != null) {
+            event.requests = requests.getLong("total");
+            event.requestsActive = requests.getInt("active");
+        }
+        JSONObject connections = json.getJSONObject("connections");
+        event.connections = connections.getLong("open");
+        event.bufferPoolBytes = connections.getLong(
+                "bufferPoolHeapBytes") +
+                connections.getLong("bufferPoolDirectBytes");
+        JSONObject threadPool = json.optJSONObject("threadPool");
+        if (threadPool != null) {
+            event.busyThreads = threadPool.getInt("busy");
+            event.queueSize = threadPool.getInt("queueSize");
+        }
+        JSONObject memory = json.getJSONObject("memory");
+        event.heapUsed = memory.getLong("heapUsed");
+        JSONObject gc = json.getJSONObject("gc");
+        event.gcCount = gc.getLong("count");
+        event.gcTime = gc.getLong("timeMs");
+        event.commit();
+    }
+
+    @Name("org.gaul.httpbin.Stats")
+    @Label("HttpBin Statistics")
+    @Category("HttpBin")
+    @Description("Periodic sample of HttpBin server load")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class StatsEvent extends Event {
+        @Label("Requests")
+        private long requests;
+
+        @Label("Active Requests")
+        private int requestsActive;
+
+        @Label("Open Connections")
+        private long connections;
+
+        @Label("Busy Threads")
+        private int busyThreads;
+
+        @Label("Thread Pool Queue Size")
+        private int queueSize;
+
+        @Label("Buffer Pool Memory")
+        @DataAmount
+        private long bufferPoolBytes;
+
+        @Label("Heap Used")
+        @DataAmount
+        private long heapUsed;
+
+        @Label("GC Count")
+        private long gcCount;
+
+        @Label("GC Time")
+        @Timespan(Timespan.MILLISECONDS)
+        private long gcTime;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Verifies requests signed with AWS Signature Version 4 in the
+ * Authorization header.  The canonical URI is the request path as sent,
+ * which matches S3-style signing where the path is encoded once.
+ * Streaming chunk signatures and presigned query strings are not
+ * supported.
+ */
+final class SigV4Verifier {
+    static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final long MAX_SKEW_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final DateTimeFormatter AMZ_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private SigV4Verifier() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /**
+     * Verify request against the credentials.
+     *
+     * @param payloadHash hex SHA-256 of the request body
+     */
+    static Result verify(HttpServletRequest request, String accessKey,
+            String secretKey, String payloadHash, long nowMillis) {
+        String header = request.getHeader("Authorization");
+        if (header == null || !header.startsWith(ALGORITHM + " ")) {
+            return Result.error("MissingSecurityHeader");
+        }
+        String credential = null;
+        String signedHeaders = null;
+        String signature = null;
+        for (String part : header.substring(ALGORITHM.length() + 1)
+                .split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length != 2) {
+                return Result.error("AuthorizationHeaderMalformed");
+            } else if (pair[0].equals("Credential")) {
+                credential = pair[1];
+            } else if (pair[0].equals("SignedHeaders")) {
+                signedHeaders = pair[1];
+            } else if (pair[0].equals("Signature")) {
+                signature = pair[1];
+            }
+        }
+        if (credential == null || signedHeaders == null ||
+                signature == null) {
+            return Result.error("AuthorizationHeaderMalformed");
+        }
+        // accessKey/date/region/service/aws4_request
+        String[] scopeParts = credential.split("/", 2);
+        if (scopeParts.length != 2 ||
+                !scopeParts[1].endsWith("/aws4_request") ||
+                scopeParts[1].split("/").length != 4) {
+            return Result.error("AuthorizationHeaderMalformed");
+        }
+        if (!Digests.isEqual(scopeParts[0], accessKey)) {
+            return Result.error("InvalidAccessKeyId");
+        }
+        String scope = scopeParts[1];
+        String[] scopeFields = scope.split("/");
+
+        String amzDate = request.getHeader("X-Amz-Date");
+        if (amzDate == null) {
+            return Result.error("AccessDenied");
+        }
+        long signedMillis;
+        try {
+            signedMillis = LocalDateTime.parse(amzDate, AMZ_DATE_FORMAT)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException dtpe) {
+            return Result.error("AccessDenied");
+        }
+        if (Math.abs(nowMillis - signedMillis) > MAX_SKEW_MS) {
+            return Result.error("RequestTimeTooSkewed");
+        }
+        if (!amzDate.startsWith(scopeFields[0])) {
+            return Result.error("AuthorizationHeaderMalformed");
+        }
+
+        String contentSha256 = request.getHeader("X-Amz-Content-SHA256");
+        if (contentSha256 != null && !contentSha256.equals(UNSIGNED_PAYLOAD)) {
+            if (!contentSha256.equalsIgnoreCase(payloadHash)) {
+                return Result.error("XAmzContentSHA256Mismatch");
+            }
+        } else if (contentSha256 != null) {
+            payloadHash = contentSha256;
+        }
+
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(request.getMethod()).append('\n')
+                .append(request.getRequestURI()).append('\n')
+                .append(canonicalQuery(request.getQueryString()))
+                .append('\n');
+        for (String name : signedHeaders.split(";")) {
+            canonical.append(name).append(':');
+            List<String> values = Collections.list(request.getHeaders(name));
+            for (int i = 0; i < values.size(); ++i) {
+                if (i > 0) {
+                    canonical.append(',');
+                }
+                appendHeaderValue(canonical, values.get(i));
+            }
+            canonical.append('\n');
+        }
+        canonical.append('\n').append(signedHeaders).append('\n')
+                .append(payloadHash);
+        String canonicalRequest = canonical.toString();
+
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope +
+                "\n" + Digests.hex("SHA-256", canonicalRequest);
+        byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+        for (String field : scopeFields) {
+            key = Digests.hmacSha256(key, field);
+        }
+        String expected = Hex.encodeHexString(Digests.hmacSha256(key,
+                stringToSign));
+        if (!Digests.isEqual(expected, signature)) {
+            return new Result("SignatureDoesNotMatch", canonicalRequest,
+                    stringToSign);
+        }
+        return new Result(null, canonicalRequest, stringToSign);
+    }
+
+    /** Append value trimmed and with runs of spaces collapsed to one. */
+    private static void appendHeaderValue(StringBuilder sb, String value) {
+        String trimmed = value.trim();
+        for (int i = 0; i < trimmed.length(); ++i) {
+            char c = trimmed.charAt(i);
+            // trimmed cannot start with a space
+            if (c != ' ' || trimmed.charAt(i - 1) != ' ') {
+                sb.append(c);
+            }
+        }
+    }
+
+    /** Sort the already encoded query parameters by name then value. */
+    private static String canonicalQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+        List<String[]> params = new ArrayList<>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int index = param.indexOf('=');
+            params.add(index == -1 ? new String[] {param, ""} :
+                    new String[] {param.substring(0, index),
+                            param.substring(index + 1)});
+        }
+        params.sort((a, b) -> {
+            int result = a[0].compareTo(b[0]);
+            return result != 0 ? result : a[1].compareTo(b[1]);
+        });
+        StringBuilder builder = new StringBuilder();
+        for (String[] param : params) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(param[0]).append('=').append(param[1]);
+        }
+        return builder.toString();
+    }
+
+    static final class Result {
+        private final String error;
+        private final String canonicalRequest;
+        private final String stringToSign;
+
+        Result(String error, String canonicalRequest, String stringToSign) {
+            this.error = error;
+            this.canonicalRequest = canonicalRequest;
+            this.stringToSign = stringToSign;
+        }
+
+        static Result error(String error) {
+            return new Result(error, null, null);
+        }
+
+        boolean isValid() {
+            return error == null;
+        }
+
+        /** S3-style error code or null if valid. */
+        String getError() {
+            return error;
+        }
+
+        String getCanonicalRequest() {
+            return canonicalRequest;
+        }
+
+        String getStringToSign() {
+            return stringToSign;
+        }
+    }
+}
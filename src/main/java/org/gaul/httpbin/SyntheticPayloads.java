@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates deterministic JSON and UTF-8 text of an exact size.  Output is
+ * produced incrementally so memory use does not depend on the size.
+ */
+final class SyntheticPayloads {
+    /** Upper bound on leaves per JSON array element to bound memory. */
+    static final int MAX_JSON_LEAVES = 64 * 1024;
+    /** Upper bound on JSON nesting to bound recursion. */
+    static final int MAX_JSON_DEPTH = 64;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int TEXT_LINE_LENGTH = 64;
+    private static final String ALPHABET =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private SyntheticPayloads() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /**
+     * Write exactly size bytes of JSON: an array of objects nested depth
+     * levels deep with width members each, padded with trailing whitespace.
+     */
+    static void writeJSON(OutputStream os, long size, int depth, int width,
+            long seed) throws IOException {
+        if (size < 2) {
+            throw new IllegalArgumentException("size must be at least 2");
+        }
+        Random random = new Random(seed);
+        StringBuilder element = new StringBuilder();
+        long written = 1;
+        os.write('[');
+        while (true) {
+            element.setLength(0);
+            if (written > 1) {
+                element.append(',');
+            }
+            appendValue(element, random, depth, width);
+            byte[] bytes = element.toString().getBytes(
+                    StandardCharsets.UTF_8);
+            // reserve one byte for the closing bracket
+            if (written + bytes.length + 1 > size) {
+                break;
+            }
+            os.write(bytes);
+            written += bytes.length;
+        }
+        os.write(']');
+        ++written;
+
+        byte[] padding = new byte[(int) Math.min(BUFFER_SIZE,
+                size - written)];
+        Arrays.fill(padding, (byte) ' ');
+        while (written < size) {
+            int count = (int) Math.min(padding.length, size - written);
+            os.write(padding, 0, count);
+            written += count;
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Random random,
+            int depth, int width) {
+        if (depth == 0) {
+            switch (random.nextInt(5)) {
+            case 0:
+                sb.append(random.nextInt());
+                break;
+            case 1:
+                sb.append(random.nextDouble());
+                break;
+            case 2:
+                sb.append(random.nextBoolean());
+                break;
+            case 3:
+                sb.append("null");
+                break;
+            default:
+                sb.append('"');
+                int length = 1 + random.nextInt(16);
+                for (int i = 0; i < length; ++i) {
+                    sb.append(ALPHABET.charAt(random.nextInt(
+                            ALPHABET.length())));
+                }
+                sb.append('"');
+                break;
+            }
+        } else if (depth % 2 == 0) {
+            sb.append('[');
+            for (int i = 0; i < width; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendValue(sb, random, depth - 1, width);
+            }
+            sb.append(']');
+        } else {
+            sb.append('{');
+            for (int i = 0; i < width; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("\"k").append(i).append("\":");
+                appendValue(sb, random, depth - 1, width);
+            }
+            sb.append('}');
+        }
+    }
+
+    /**
+     * Write exactly size bytes of UTF-8 text drawn from charset: ascii,
+     * latin, cjk, emoji or mixed which cycles through 1- to 4-byte code
+     * points.
+     */
+    static void writeText(OutputStream os, long size, String charset)
+            throws IOException {
+        int[][] ranges = textRanges(charset);
+        if (ranges == null) {
+            throw new IllegalArgumentException(
+                    "unknown charset: " + charset);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int pos = 0;
+        long written = 0;
+        for (long i = 0; written < size; ++i) {
+            int[] range = ranges[(int) (i % ranges.length)];
+            int codePoint = (i + 1) % TEXT_LINE_LENGTH == 0 ? '\n' :
+                    range[0] + (int) ((i / ranges.length) % range[1]);
+            int length = utf8Length(codePoint);
+            if (written + length > size) {
+                // not enough room for a multi-byte sequence; pad with ASCII
+                codePoint = 'a';
+                length = 1;
+            }
+            if (pos + length > buffer.length) {
+                os.write(buffer, 0, pos);
+                pos = 0;
+            }
+            pos = encodeUtf8(codePoint, buffer, pos);
+            written += length;
+        }
+        os.write(buffer, 0, pos);
+    }
+
+    static boolean isTextCharset(String charset) {
+        return textRanges(charset) != null;
+    }
+
+    /** Return pairs of first code point and count for each charset. */
+    private static int[][] textRanges(String charset) {
+        switch (charset) {
+        case "ascii":
+            return new int[][] {{'a', 26}};
+        case "latin":
+            return new int[][] {{0xC0, 0x40}};
+        case "cjk":
+            return new int[][] {{0x4E00, 0x5000}};
+        case "emoji":
+            return new int[][] {{0x1F600, 0x50}};
+        case "mixed":
+            return new int[][] {
+                {'a', 26}, {0xC0, 0x40}, {0x4E00, 0x5000}, {0x1F600, 0x50},
+            };
+        default:
+            return null;
+        }
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        } else if (codePoint < 0x800) {
+            return 2;
+        } else if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static int encodeUtf8(int codePoint, byte[] buffer, int pos) {
+        if (codePoint < 0x80) {
+            buffer[pos++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[pos++] = (byte) (0xC0 | (codePoint >> 6));
+            buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            buffer[pos++] = (byte) (0xE0 | (codePoint >> 12));
+            buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces writes to a fixed rate.  Large writes are split into slices of a
+ * tenth of a second's worth of bytes so that output flows smoothly rather
+ * than in bursts.
+ */
+final class ThrottledOutputStream extends FilterOutputStream {
+    private final long bytesPerSecond;
+    private final int sliceSize;
+    private final long startNanos = System.nanoTime();
+    private long written;
+
+    ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+        super(out);
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException(
+                    "bytesPerSecond must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.sliceSize = (int) Math.max(1, Math.min(64 * 1024,
+                bytesPerSecond / 10));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pace(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, sliceSize);
+            pace(n);
+            out.write(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Sleep until the bytes written so far fit within the rate. */
+    private void pace(int count) throws IOException {
+        long dueNanos = startNanos + (long) (written * 1e9 / bytesPerSecond);
+        long sleepNanos = dueNanos - System.nanoTime();
+        if (sleepNanos > 0) {
+            // push out what the client is already owed before sleeping
+            out.flush();
+            Utils.sleepUninterruptibly(sleepNanos, TimeUnit.NANOSECONDS);
+        }
+        written += count;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018-2023 Andrew Gaul <andrew@gaul.org>
+ * Copyright 2015-2016 Bounce Storage, Inc. <info@bouncestorage.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.httpbin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jetty.server.HttpInput;
+import org.json.JSONObject;
+
+/**
+ * Consumes a request body while counting bytes and optionally computing a
+ * streaming checksum, then reports the observed upload throughput.
+ */
+final class UploadSink {
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private final String algorithm;
+    private final Checksum checksum;
+    private final MessageDigest digest;
+    private final long startNanos = System.nanoTime();
+    private long endNanos;
+    private long bytes;
+    private long reads;
+    private String readMode = "heap";
+
+    /**
+     * @param algorithm one of crc32c, sha256 or null for no checksum
+     * @throws IllegalArgumentException if the algorithm is unknown
+     */
+    UploadSink(String algorithm) {
+        this.algorithm = algorithm;
+        if (algorithm == null) {
+            checksum = null;
+            digest = null;
+        } else if (algorithm.equals("crc32c")) {
+            checksum = new CRC32C();
+            digest = null;
+        } else if (algorithm.equals("sha256")) {
+            checksum = null;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "unknown digest: " + algorithm);
+        }
+    }
+
+    /**
+     * Drain is until EOF.  Direct buffers are only used when is is Jetty's
+     * HttpInput which can read into a ByteBuffer without a heap copy, and
+     * not when another stream, such as the request recorder, wraps it.
+     */
+    void drain(InputStream is, int bufferSize, boolean direct)
+            throws IOException {
+        if (direct && is instanceof HttpInput) {
+            HttpInput input = (HttpInput) is;
+            readMode = "direct";
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            while (true) {
+                buffer.clear();
+                int r = input.read(buffer);
+                if (r == -1) {
+                    break;
+                }
+                buffer.flip();
+                update(buffer);
+            }
+        } else {
+            byte[] buffer = new byte[bufferSize];
+            while (true) {
+                int r = is.read(buffer);
+                if (r == -1) {
+                    break;
+                }
+                update(buffer, 0, r);
+            }
+        }
+        finish();
+    }
+
+    /** Record how the body was read, for callers which read it themselves. */
+    void setReadMode(String readMode) {
+        this.readMode = readMode;
+    }
+
+    void update(byte[] b, int off, int len) {
+        if (checksum != null) {
+            checksum.update(b, off, len);
+        } else if (digest != null) {
+            digest.update(b, off, len);
+        }
+        bytes += len;
+        ++reads;
+    }
+
+    void update(ByteBuffer buffer) {
+        int len = buffer.remaining();
+        if (checksum != null) {
+            checksum.update(buffer);
+        } else if (digest != null) {
+            digest.update(buffer);
+        }
+        bytes += len;
+        ++reads;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    JSONObject toJSON() {
+        long elapsedNanos = Math.max(endNanos - startNanos, 1);
+        JSONObject response = new JSONObject();
+        response.put("bytes", bytes);
+        response.put("reads", reads);
+        response.put("readMode", readMode);
+        response.put("elapsedNanos", elapsedNanos);
+        response.put("bytesPerSecond", bytes * 1_000_000_000.0 / elapsedNanos);
+        if (checksum != null) {
+            response.put(algorithm, String.format("%08x",
+                    checksum.getValue()));
+        } else if (digest != null) {
+            response.put(algorithm, Hex.encodeHexString(digest.digest()));
+        }
+        return response;
+    }
+}
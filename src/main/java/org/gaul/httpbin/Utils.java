@@ -88,6 +88,15 @@ final class Utils {
         return Integer.parseInt(value);
     }
 
+    static long getLongParameter(HttpServletRequest request, String name,
+            long defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(value);
+    }
+
     static double getDoubleParameter(HttpServletRequest request, String name,
             double defaultValue) {
         String value = request.getParameter(name);
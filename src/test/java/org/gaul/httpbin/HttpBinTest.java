@@ -19,12 +19,60 @@ package org.gaul.httpbin;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
 import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.codec.binary.Hex;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpContentResponse;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.AsyncRequestContent;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.BytesRequestContent;
 import org.eclipse.jetty.client.util.MultiPartContentProvider;
 import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.client.util.StringRequestContent;
+import org.eclipse.jetty.http.HttpHeader;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -32,18 +80,23 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
 public final class HttpBinTest {
     private static final Logger logger = LoggerFactory.getLogger(
             HttpBinTest.class);
 
     private URI httpBinEndpoint = URI.create("http://127.0.0.1:0");
 
+    private HttpBinHandler handler;
     private HttpBin httpBin;
     private HttpClient client;
 
     @Before
     public void setUp() throws Exception {
-        httpBin = new HttpBin(httpBinEndpoint);
+        handler = new HttpBinHandler();
+        httpBin = new HttpBin(httpBinEndpoint, handler);
         httpBin.start();
 
         // reset endpoint to handle zero port
@@ -109,4 +162,1101 @@ public final class HttpBinTest {
         JSONObject object = new JSONObject(response.getContentAsString());
         assertThat(object.getString("data")).isEqualTo(input);
     }
+
+    @Test
+    public void testRequestRecorder() throws Exception {
+        handler.setRequestRecorder(new RequestRecorder(2, 4));
+        for (String input : new String[] {"first", "second", "third"}) {
+            ContentResponse response = client.POST(httpBinEndpoint + "/post")
+                    .content(new StringContentProvider(input), "text/plain")
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+        }
+
+        ContentResponse response = client.GET(httpBinEndpoint +
+                "/requests?since=0");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        JSONObject object = new JSONObject(response.getContentAsString());
+        assertThat(object.getLong("next")).isEqualTo(3);
+        JSONArray requests = object.getJSONArray("requests");
+        assertThat(requests.length()).isEqualTo(2);
+        JSONObject last = requests.getJSONObject(1);
+        assertThat(last.getLong("seq")).isEqualTo(2);
+        assertThat(last.getString("method")).isEqualTo("POST");
+        assertThat(last.getLong("bodyLength")).isEqualTo(5);
+        assertThat(last.getString("body")).isEqualTo(
+                Base64.getEncoder().encodeToString(
+                        "thir".getBytes(StandardCharsets.UTF_8)));
+        assertThat(last.getBoolean("bodyTruncated")).isTrue();
+
+        response = client.GET(httpBinEndpoint + "/requests/export?since=2");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContentAsString().split("\n")).hasSize(1);
+    }
+
+    @Test
+    public void testUploadSink() throws Exception {
+        byte[] input = new byte[1024 * 1024 + 1];
+        new Random(0).nextBytes(input);
+        CRC32C crc = new CRC32C();
+        crc.update(input);
+        String expectedSha256 = Hex.encodeHexString(
+                MessageDigest.getInstance("SHA-256").digest(input));
+
+        String[] queries = {
+            "digest=crc32c&direct=true",
+            "digest=sha256&async=true&bufferSize=4096",
+        };
+        for (String query : queries) {
+            ContentResponse response = client.POST(httpBinEndpoint +
+                    "/upload-sink?" + query)
+                    .content(new BytesContentProvider(input))
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            JSONObject object = new JSONObject(response.getContentAsString());
+            assertThat(object.getLong("bytes")).isEqualTo(input.length);
+            assertThat(object.getDouble("bytesPerSecond")).isPositive();
+            assertThat(object.getString("readMode")).isEqualTo(
+                    query.contains("async") ? "async" : "direct");
+            if (object.has("crc32c")) {
+                assertThat(object.getString("crc32c")).isEqualTo(
+                        String.format("%08x", crc.getValue()));
+            } else {
+                assertThat(object.getString("sha256")).isEqualTo(
+                        expectedSha256);
+            }
+        }
+    }
+
+    @Test
+    public void testUploadSinkInvalidBufferSize() throws Exception {
+        for (String query : List.of("bufferSize=0", "bufferSize=-1",
+                "bufferSize=0&direct=true", "bufferSize=0&async=true",
+                "bufferSize=2147483647")) {
+            ContentResponse response = client.POST(httpBinEndpoint +
+                    "/upload-sink?" + query)
+                    .body(new BytesRequestContent(new byte[16]))
+                    .send();
+            assertThat(response.getStatus()).as(query).isEqualTo(400);
+        }
+    }
+
+    @Test
+    public void testJSONGenerator() throws Exception {
+        String uri = httpBinEndpoint + "/json/100000?depth=3&width=3&seed=7";
+        ContentResponse response = client.GET(uri);
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContent()).hasSize(100000);
+        JSONArray array = new JSONArray(response.getContentAsString());
+        assertThat(array.length()).isPositive();
+        assertThat(client.GET(uri).getContentAsString()).isEqualTo(
+                response.getContentAsString());
+
+        assertThat(client.GET(httpBinEndpoint +
+                "/json/100?depth=64&width=1").getStatus()).isEqualTo(200);
+        assertThat(client.GET(httpBinEndpoint +
+                "/json/100?depth=1000000&width=1").getStatus())
+                .isEqualTo(400);
+    }
+
+    @Test
+    public void testServerSeed() throws Exception {
+        client.newRequest(httpBinEndpoint + "/admin/config")
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultRate\": 0.5}"))
+                .send();
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        for (List<String> results : List.of(first, second)) {
+            handler.setSeed(42L);
+            for (String path : List.of("/bytes/100", "/stream-bytes/100",
+                    "/json/100", "/bytes/100", "/get", "/get", "/get",
+                    "/get")) {
+                ContentResponse response = client.GET(httpBinEndpoint + path);
+                results.add(response.getStatus() + " " +
+                        Arrays.toString(response.getContent()));
+            }
+        }
+        assertThat(second).isEqualTo(first);
+        assertThat(first).anyMatch(result -> result.startsWith("200 "));
+        assertThat(first).anyMatch(result -> !result.startsWith("200 "));
+
+        // interleaving other routes does not perturb a route's stream
+        handler.setSeed(42L);
+        List<String> interleaved = new ArrayList<>();
+        for (String path : List.of("/get", "/bytes/100", "/get",
+                "/stream-bytes/100", "/get", "/json/100", "/get",
+                "/bytes/100")) {
+            ContentResponse response = client.GET(httpBinEndpoint + path);
+            interleaved.add(response.getStatus() + " " +
+                    Arrays.toString(response.getContent()));
+        }
+        assertThat(List.of(interleaved.get(1), interleaved.get(3),
+                interleaved.get(5), interleaved.get(7), interleaved.get(0),
+                interleaved.get(2), interleaved.get(4), interleaved.get(6)))
+                .isEqualTo(first);
+
+        // an explicit seed does not consume the route's sequence number
+        client.newRequest(httpBinEndpoint + "/admin/config")
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultRate\": 0}"))
+                .send();
+        handler.setSeed(42L);
+        byte[] expected = client.GET(httpBinEndpoint + "/json/100")
+                .getContent();
+        handler.setSeed(42L);
+        client.GET(httpBinEndpoint + "/json/100?seed=7");
+        assertThat(client.GET(httpBinEndpoint + "/json/100").getContent())
+                .isEqualTo(expected);
+
+        // paths which the handler does not serve share one fault stream
+        client.newRequest(httpBinEndpoint + "/admin/config")
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultRate\": 0.5}"))
+                .send();
+        handler.setSeed(42L);
+        for (int i = 0; i < 10; ++i) {
+            client.GET(httpBinEndpoint + "/unknown" + i + "/path");
+        }
+        client.GET(httpBinEndpoint + "/get");
+        assertThat(handler.getRandomSource().size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testTextGenerator() throws Exception {
+        ContentResponse response = client.GET(httpBinEndpoint +
+                "/text/100001?charset=mixed");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        byte[] content = response.getContent();
+        assertThat(content).hasSize(100001);
+        // round trip fails on malformed UTF-8
+        assertThat(new String(content, StandardCharsets.UTF_8).getBytes(
+                StandardCharsets.UTF_8)).isEqualTo(content);
+    }
+
+    @Test
+    public void testChunkedTrailer() throws Exception {
+        String response = rawRequest(
+                "GET /range/10?chunkSize=4&trailer=crc32c HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+        assertThat(response).startsWith("HTTP/1.1 200 ");
+        assertThat(response).containsIgnoringCase(
+                "Transfer-Encoding: chunked");
+        String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+        String[] lines = body.split("\r\n");
+        assertThat(lines[0]).isEqualTo("4");
+        assertThat(lines[1]).isEqualTo("abcd");
+        assertThat(lines[2]).isEqualTo("4");
+        assertThat(lines[4]).isEqualTo("2");
+        assertThat(lines[6]).isEqualTo("0");
+        assertThat(lines[7]).startsWith(
+                PayloadOutputStream.CRC32C_TRAILER + ": ");
+    }
+
+    @Test
+    public void testForcedContentLength() throws Exception {
+        ContentResponse response = client.GET(httpBinEndpoint +
+                "/stream-bytes/1000?framing=length&chunkSize=100");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getHeaders().get("Content-Length")).isEqualTo(
+                "1000");
+        assertThat(response.getContent()).hasSize(1000);
+    }
+
+    @Test
+    public void testPayloadBufferSize() throws Exception {
+        ContentResponse response = client.GET(httpBinEndpoint +
+                "/bytes/100000?bufferSize=65536");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContent()).hasSize(100000);
+
+        for (String query : List.of("bufferSize=0", "bufferSize=-1",
+                "bufferSize=16777217", "bufferSize=1500000000",
+                "chunkSize=1500000000")) {
+            response = client.GET(httpBinEndpoint + "/bytes/100000?" +
+                    query);
+            assertThat(response.getStatus()).as(query).isEqualTo(400);
+        }
+    }
+
+    @Test
+    public void testConnectionCloseAfter() throws Exception {
+        long id = -1;
+        for (int i = 1; i <= 3; ++i) {
+            ContentResponse response = client.newRequest(httpBinEndpoint +
+                    "/connection")
+                    .header(HttpBinHandler.CLOSE_AFTER_HEADER, "2")
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            JSONObject object = new JSONObject(response.getContentAsString());
+            if (i == 1) {
+                id = object.getLong("id");
+            }
+            if (i <= 2) {
+                assertThat(object.getLong("id")).isEqualTo(id);
+                assertThat(object.getLong("request")).isEqualTo(i);
+                assertThat(object.getBoolean("close")).isEqualTo(i == 2);
+            } else {
+                // previous response closed the connection
+                assertThat(object.getLong("id")).isNotEqualTo(id);
+                assertThat(object.getLong("request")).isEqualTo(1);
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionControlsInvalidHeaders() throws Exception {
+        for (String header : List.of(HttpBinHandler.CLOSE_AFTER_HEADER,
+                HttpBinHandler.IDLE_TIMEOUT_HEADER)) {
+            for (String value : List.of("abc", "-1")) {
+                ContentResponse response = client.newRequest(
+                        httpBinEndpoint + "/get")
+                        .headers(headers -> headers.put(header, value))
+                        .send();
+                assertThat(response.getStatus()).as(header + ": " + value)
+                        .isEqualTo(400);
+            }
+        }
+    }
+
+    @Test
+    public void testTls() throws Exception {
+        // TLS 1.3 resumes via pre-shared keys rather than session IDs
+        for (String protocol : List.of("TLSv1.2", "TLSv1.3")) {
+            checkTls(protocol);
+        }
+    }
+
+    private static void checkTls(String protocol) throws Exception {
+        HttpBin tlsHttpBin = new HttpBin(URI.create("https://127.0.0.1:0"));
+        tlsHttpBin.getSslContextFactory().setIncludeProtocols(protocol);
+        tlsHttpBin.start();
+        try {
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(
+                            TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(
+                    tlsHttpBin.getSslContextFactory().getKeyStore());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagerFactory.getTrustManagers(),
+                    null);
+            URI uri = URI.create("https://127.0.0.1:" + tlsHttpBin.getPort() +
+                    "/tls");
+
+            // separate clients open separate connections sharing a session
+            for (boolean resumed : new boolean[] {false, true}) {
+                java.net.http.HttpClient tlsClient =
+                        java.net.http.HttpClient.newBuilder()
+                                .sslContext(sslContext)
+                                .build();
+                HttpResponse<String> response = tlsClient.send(
+                        HttpRequest.newBuilder(uri).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertThat(response.statusCode()).as("status").isEqualTo(200);
+                assertThat(response.version()).isEqualTo(
+                        java.net.http.HttpClient.Version.HTTP_2);
+                JSONObject object = new JSONObject(response.body());
+                assertThat(object.getBoolean("secure")).isTrue();
+                assertThat(object.getString("protocol")).isEqualTo(protocol);
+                assertThat(object.getBoolean("resumed")).as(protocol)
+                        .isEqualTo(resumed);
+            }
+        } finally {
+            tlsHttpBin.stop();
+        }
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        httpBin.getAdmissionHandler().setMaxInFlight(10);
+        httpBin.getAdmissionHandler().setMaxInFlightPerRoute(1);
+        httpBin.getAdmissionHandler().setRetryAfterSeconds(2);
+        CompletableFuture<ContentResponse> slow = new CompletableFuture<>();
+        client.newRequest(httpBinEndpoint + "/delay/1")
+                .send(new BufferingResponseListener() {
+                    @Override
+                    public void onComplete(Result result) {
+                        slow.complete(new HttpContentResponse(
+                                result.getResponse(), getContent(),
+                                getMediaType(), getEncoding()));
+                    }
+                });
+        // wait for the slow request to occupy the route
+        while (httpBin.getAdmissionHandler().getInFlight() == 0) {
+            Thread.sleep(10);
+        }
+        ContentResponse response = client.GET(httpBinEndpoint + "/delay/0");
+        assertThat(response.getStatus()).as("status").isEqualTo(503);
+        assertThat(response.getHeaders().get("Retry-After")).isEqualTo("2");
+        // other routes are unaffected
+        assertThat(client.GET(httpBinEndpoint + "/get").getStatus())
+                .isEqualTo(200);
+        assertThat(slow.get().getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    public void testAdaptiveAdmission() throws Exception {
+        AdmissionHandler admission = httpBin.getAdmissionHandler();
+        admission.setMaxInFlight(16);
+        admission.setAdaptive(true, /*targetLatencyMs=*/ 10);
+
+        // requested delays do not count as overload
+        sendConcurrently("/delay/0.1", 8);
+        assertThat(admission.getLimit()).isEqualTo(16);
+
+        // one window of slow requests shrinks the limit once, not per request
+        client.newRequest(httpBinEndpoint + "/admin/config")
+                .method("PUT")
+                .body(new StringRequestContent("{\"faultDelayMs\": 100}"))
+                .send();
+        sendConcurrently("/get", 8);
+        assertThat(admission.getLimit()).isLessThan(16).isGreaterThan(12);
+    }
+
+    private void sendConcurrently(String path, int count) throws Exception {
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; ++i) {
+            client.newRequest(httpBinEndpoint + path)
+                    .send(result -> latch.countDown());
+        }
+        assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        String uri = httpBinEndpoint + "/ratelimit/test?rps=0.1&burst=3";
+        for (int i = 2; i >= 0; --i) {
+            ContentResponse response = client.GET(uri);
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            assertThat(response.getHeaders().get("RateLimit-Limit"))
+                    .isEqualTo("3");
+            assertThat(response.getHeaders().get("RateLimit-Remaining"))
+                    .isEqualTo(String.valueOf(i));
+        }
+        ContentResponse response = client.GET(uri);
+        assertThat(response.getStatus()).as("status").isEqualTo(429);
+        assertThat(Long.parseLong(response.getHeaders().get("Retry-After")))
+                .isBetween(1L, 10L);
+
+        // other keys have their own buckets
+        assertThat(client.GET(httpBinEndpoint + "/ratelimit/other")
+                .getStatus()).isEqualTo(200);
+
+        // a bucket which would take centuries to fill is rejected
+        assertThat(client.GET(httpBinEndpoint +
+                "/ratelimit/huge?rps=0.001&burst=10000000").getStatus())
+                .isEqualTo(400);
+        assertThat(client.GET(httpBinEndpoint +
+                "/ratelimit/tiny?rps=1e-12&burst=1").getStatus())
+                .isEqualTo(400);
+    }
+
+    @Test
+    public void testRateLimiterMaxBuckets() throws Exception {
+        RateLimiter limiter = new RateLimiter(2);
+        assertThat(limiter.acquire("a", 1, 1).isAllowed()).isTrue();
+        assertThat(limiter.acquire("b", 1e9, 1).isAllowed()).isTrue();
+        try {
+            limiter.acquire("c", 1, 1);
+            throw new AssertionError("expected FullException");
+        } catch (RateLimiter.FullException fe) {
+            // expected
+        }
+        // existing keys are unaffected
+        assertThat(limiter.acquire("a", 1, 1).isAllowed()).isFalse();
+
+        // b refills within a nanosecond and is swept, freeing its slot
+        Thread.sleep(1);
+        for (int i = 0; i < 1024; ++i) {
+            limiter.acquire("a", 1, 1);
+        }
+        assertThat(limiter.acquire("c", 1, 1).isAllowed()).isTrue();
+    }
+
+    @Test
+    public void testRateLimiterConcurrent() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; ++j) {
+                    if (limiter.acquire("key", 0.001, 100).isAllowed()) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(allowed.get()).isEqualTo(100);
+    }
+
+    @Test
+    public void testKeyValueStore() throws Exception {
+        byte[] input = new byte[3 * 1024 * 1024 / 2 + 17];
+        new Random(0).nextBytes(input);
+        String uri = httpBinEndpoint + "/kv/object";
+        ContentResponse response = client.newRequest(uri)
+                .method("PUT")
+                .content(new BytesContentProvider(input))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        String eTag = response.getHeaders().get("ETag");
+        assertThat(eTag).isEqualTo("\"" + Hex.encodeHexString(
+                MessageDigest.getInstance("MD5").digest(input)) + "\"");
+
+        response = client.GET(uri);
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContent()).isEqualTo(input);
+
+        response = client.newRequest(uri)
+                .header("Range", "bytes=1048570-1048580")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(206);
+        assertThat(response.getContent()).isEqualTo(
+                Arrays.copyOfRange(input, 1048570, 1048581));
+
+        response = client.newRequest(uri)
+                .method("HEAD")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getHeaders().getLongField("Content-Length"))
+                .isEqualTo(input.length);
+
+        response = client.newRequest(uri)
+                .method("DELETE")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(204);
+        assertThat(client.GET(uri).getStatus()).isEqualTo(404);
+    }
+
+    @Test
+    public void testKeyValueStoreSpillAndEviction() throws Exception {
+        Path spillDirectory = Files.createTempDirectory("httpbin");
+        try {
+            handler.setKeyValueStore(new KeyValueStore(2 * 1024 * 1024,
+                    spillDirectory, 1024));
+            byte[] input = new byte[1024 * 1024 + 1];
+            new Random(0).nextBytes(input);
+            for (String key : new String[] {"first", "second"}) {
+                ContentResponse response = client.newRequest(
+                        httpBinEndpoint + "/kv/" + key)
+                        .method("PUT")
+                        .content(new BytesContentProvider(input))
+                        .send();
+                assertThat(response.getStatus()).as("status").isEqualTo(200);
+            }
+            // least recently used value was evicted to stay within capacity
+            assertThat(client.GET(httpBinEndpoint + "/kv/first").getStatus())
+                    .isEqualTo(404);
+            ContentResponse response = client.GET(
+                    httpBinEndpoint + "/kv/second");
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            assertThat(response.getContent()).isEqualTo(input);
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                assertThat(files.count()).isZero();
+            }
+        } finally {
+            Files.delete(spillDirectory);
+        }
+    }
+
+    @Test
+    public void testKeyValueStoreConcurrentReservation() throws Exception {
+        handler.setKeyValueStore(new KeyValueStore(1024 * 1024));
+        byte[] input = new byte[1024 * 1024];
+        AsyncRequestContent content = new AsyncRequestContent();
+        CompletableFuture<ContentResponse> first = new CompletableFuture<>();
+        client.newRequest(httpBinEndpoint + "/kv/first")
+                .method("PUT")
+                .headers(headers -> headers.putLongField(
+                        HttpHeader.CONTENT_LENGTH, input.length))
+                .body(content)
+                .send(new BufferingResponseListener() {
+                    @Override
+                    public void onComplete(Result result) {
+                        first.complete(new HttpContentResponse(
+                                result.getResponse(), getContent(),
+                                getMediaType(), getEncoding()));
+                    }
+                });
+        content.offer(ByteBuffer.wrap(input, 0, 1024));
+
+        // once the in-progress put reserves the whole capacity, others fail
+        int status = 200;
+        for (int i = 0; i < 100 && status == 200; ++i) {
+            status = client.newRequest(httpBinEndpoint + "/kv/second")
+                    .method("PUT")
+                    .body(new BytesRequestContent(new byte[1024]))
+                    .send().getStatus();
+            Thread.sleep(10);
+        }
+        assertThat(status).as("status").isEqualTo(503);
+
+        content.offer(ByteBuffer.wrap(input, 1024, input.length - 1024));
+        content.close();
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+        assertThat(client.newRequest(httpBinEndpoint + "/kv/second")
+                .method("PUT")
+                .body(new BytesRequestContent(new byte[1024]))
+                .send().getStatus()).isEqualTo(200);
+    }
+
+    @Test
+    public void testBase64Streaming() throws Exception {
+        byte[] input = new byte[100 * 1024 + 1];
+        new Random(0).nextBytes(input);
+        ContentResponse response = client.POST(
+                httpBinEndpoint + "/base64/encode")
+                .content(new BytesContentProvider(input))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        byte[] encoded = response.getContent();
+        assertThat(encoded).isEqualTo(Base64.getMimeEncoder().encode(input));
+
+        response = client.POST(httpBinEndpoint + "/base64/decode")
+                .content(new BytesContentProvider(encoded))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContent()).isEqualTo(input);
+
+        response = client.POST(httpBinEndpoint + "/base64/decode")
+                .content(new StringContentProvider("QQ=A"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        response = client.GET(httpBinEndpoint + "/base64/!!!");
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+    }
+
+    @Test
+    public void testRedirects() throws Exception {
+        ContentResponse response = client.newRequest(
+                httpBinEndpoint + "/absolute-redirect/2")
+                .followRedirects(false)
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(302);
+        assertThat(response.getHeaders().get("Location")).isEqualTo(
+                httpBinEndpoint + "/absolute-redirect/1");
+
+        response = client.GET(httpBinEndpoint + "/relative-redirect/3");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+
+        String location = "/redirect-loop/3";
+        String[] expectedLocations = {
+            "/redirect-loop/3?step=1",
+            "/redirect-loop/3?step=2",
+            "/redirect-loop/3?step=0",
+        };
+        for (String expected : expectedLocations) {
+            response = client.newRequest(httpBinEndpoint + location)
+                    .followRedirects(false)
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(302);
+            location = response.getHeaders().get("Location");
+            assertThat(location).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testCrossPortRedirects() throws Exception {
+        HttpBin other = new HttpBin(URI.create("http://127.0.0.1:0"));
+        other.start();
+        try {
+            String ports = httpBin.getPort() + "," + other.getPort();
+            ContentResponse response = client.newRequest(
+                    httpBinEndpoint + "/redirect/3?ports=" + ports)
+                    .followRedirects(false)
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(302);
+            assertThat(response.getHeaders().get("Location")).isEqualTo(
+                    "http://127.0.0.1:" + other.getPort() +
+                    "/redirect/2?ports=" + ports);
+
+            response = client.GET(httpBinEndpoint + "/redirect/3?ports=" +
+                    ports);
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            JSONObject object = new JSONObject(response.getContentAsString());
+            assertThat(object.getString("url")).isEqualTo(
+                    "http://127.0.0.1:" + other.getPort() + "/get");
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        assertThat(client.GET(httpBinEndpoint + "/get").getStatus())
+                .isEqualTo(200);
+        ContentResponse response = client.GET(httpBinEndpoint + "/stats");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        JSONObject object = new JSONObject(response.getContentAsString());
+        assertThat(object.getJSONObject("requests").getLong("total"))
+                .isGreaterThanOrEqualTo(1);
+        assertThat(object.getJSONObject("connections").getLong("open"))
+                .isGreaterThanOrEqualTo(1);
+        assertThat(object.getJSONObject("threadPool").getInt("maxThreads"))
+                .isPositive();
+        assertThat(object.getJSONObject("memory").getLong("heapUsed"))
+                .isPositive();
+        assertThat(object.getJSONObject("gc").has("count")).isTrue();
+
+        Path path = Files.createTempFile("httpbin", ".jfr");
+        httpBin.setFlightRecorderEvents(true);
+        try {
+            assertThat(recordStatsEvents(path)).isPositive();
+            // stopping the server removes the periodic hook
+            httpBin.stop();
+            assertThat(recordStatsEvents(path)).isZero();
+        } finally {
+            httpBin.setFlightRecorderEvents(false);
+            Files.delete(path);
+        }
+    }
+
+    private static long recordStatsEvents(Path path) throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable("org.gaul.httpbin.Stats")
+                    .withPeriod(Duration.ofMillis(100));
+            recording.start();
+            Thread.sleep(500);
+            recording.stop();
+            recording.dump(path);
+        }
+        return RecordingFile.readAllEvents(path).stream()
+                .filter(event -> event.getEventType().getName().equals(
+                        "org.gaul.httpbin.Stats"))
+                .count();
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        LoadGenerator.Result result = new LoadGenerator(
+                URI.create(httpBinEndpoint + "/get"), 200, 500)
+                .setMaxConnections(4)
+                .run();
+        assertThat(result.getRequests()).isEqualTo(100);
+        assertThat(result.getErrors()).isZero();
+        assertThat(result.getStatuses()).containsEntry(200, 100L);
+        assertThat(result.getLatency().getTotalCount()).isEqualTo(100);
+        assertThat(result.getLatency().getMaxValue()).isGreaterThanOrEqualTo(
+                result.getServiceTime().getMinValue());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        result.print(new PrintStream(output, true, StandardCharsets.UTF_8));
+        assertThat(output.toString(StandardCharsets.UTF_8)).contains("99.9");
+    }
+
+    @Test
+    public void testCookies() throws Exception {
+        ContentResponse response = client.newRequest(
+                httpBinEndpoint + "/cookies/generate/1000?size=100")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        List<String> cookies = response.getHeaders().getValuesList(
+                "Set-Cookie");
+        assertThat(cookies).hasSize(1000);
+        assertThat(cookies.get(999)).startsWith("c999=abcdefghijklmnopqrst")
+                .endsWith("; Path=/");
+        client.getCookieStore().removeAll();
+
+        response = client.newRequest(httpBinEndpoint + "/cookies")
+                .header("Cookie", "a=1; b=\"two\"; $Version=1")
+                .header("Cookie", "a=3")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getHeaders().getLongField("Content-Length"))
+                .isEqualTo(response.getContent().length);
+        JSONObject object = new JSONObject(response.getContentAsString())
+                .getJSONObject("cookies");
+        assertThat(object.toMap()).isEqualTo(Map.of("a", "3", "b", "two"));
+
+        response = client.GET(httpBinEndpoint + "/cookies/generate/1000000");
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+    }
+
+    @Test
+    public void testGracefulStop() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        BufferingResponseListener listener = new BufferingResponseListener() {
+            @Override
+            public void onContent(Response response, ByteBuffer content) {
+                super.onContent(response, content);
+                started.countDown();
+            }
+
+            @Override
+            public void onComplete(Result result) {
+                future.complete(result);
+            }
+        };
+        client.newRequest(httpBinEndpoint +
+                "/drip?numbytes=4&duration=1&chunkSize=1")
+                .send(listener);
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        httpBin.stop();
+        Result result = future.get(10, TimeUnit.SECONDS);
+        assertThat(result.isSucceeded()).isTrue();
+        assertThat(result.getResponse().getStatus()).isEqualTo(200);
+        assertThat(listener.getContentAsString()).isEqualTo("****");
+    }
+
+    @Test
+    public void testRuntimeConfig() throws Exception {
+        String uri = httpBinEndpoint + "/admin/config";
+        ContentResponse response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider(
+                        "{\"faultRate\": 1, \"faultStatus\": 502}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(client.GET(httpBinEndpoint + "/get").getStatus())
+                .isEqualTo(502);
+
+        response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultRate\": 2}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        // a 1xx status cannot be a final response
+        response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultStatus\": 101}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        // fault delays are bounded like /delay
+        response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider(
+                        "{\"faultDelayMs\": 10001}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+        response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider(
+                        "{\"maxDelayMs\": 10, \"faultDelayMs\": 20}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        response = client.newRequest(uri)
+                .method("PUT")
+                .content(new StringContentProvider("{\"faultRate\": 0, " +
+                        "\"throttleBytesPerSecond\": 100000}"))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        long start = System.nanoTime();
+        response = client.GET(httpBinEndpoint + "/bytes/50000");
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        assertThat(response.getContent()).hasSize(50000);
+        assertThat(System.nanoTime() - start).isGreaterThan(
+                TimeUnit.MILLISECONDS.toNanos(400));
+
+        JSONObject config = new JSONObject(client.GET(uri)
+                .getContentAsString());
+        assertThat(config.getLong("throttleBytesPerSecond"))
+                .isEqualTo(100000);
+        assertThat(config.getInt("faultStatus")).isEqualTo(502);
+    }
+
+    @Test
+    public void testRequestContentEncoding() throws Exception {
+        String input = "{\"foo\": \"" + "bar".repeat(1000) + "\"}";
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        try (OutputStream os = new GZIPOutputStream(gzip)) {
+            os.write(bytes);
+        }
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(zlib)) {
+            os.write(bytes);
+        }
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(raw,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            os.write(bytes);
+        }
+
+        ByteArrayOutputStream stacked = new ByteArrayOutputStream();
+        try (OutputStream os = new DeflaterOutputStream(stacked)) {
+            os.write(gzip.toByteArray());
+        }
+
+        // concatenated gzip members decode to the concatenated contents
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        for (int off = 0; off < bytes.length; off += 1000) {
+            try (OutputStream os = new GZIPOutputStream(members)) {
+                os.write(bytes, off, Math.min(1000, bytes.length - off));
+            }
+        }
+
+        String[] encodings = {
+            "gzip", "deflate", "deflate", "gzip, deflate", "gzip"
+        };
+        byte[][] bodies = {gzip.toByteArray(), zlib.toByteArray(),
+                raw.toByteArray(), stacked.toByteArray(),
+                members.toByteArray()};
+        for (int i = 0; i < encodings.length; ++i) {
+            String encoding = encodings[i];
+            ContentResponse response = client.POST(httpBinEndpoint + "/post")
+                    .headers(headers -> headers.put("Content-Encoding",
+                            encoding))
+                    .body(new BytesRequestContent(bodies[i]))
+                    .send();
+            assertThat(response.getStatus()).as("status").isEqualTo(200);
+            JSONObject object = new JSONObject(response.getContentAsString());
+            assertThat(object.getString("data")).isEqualTo(input);
+        }
+
+        byte[] corrupt = gzip.toByteArray();
+        corrupt[corrupt.length - 5] ^= 1;
+        ContentResponse response = client.POST(httpBinEndpoint + "/anything")
+                .headers(headers -> headers.put("Content-Encoding", "gzip"))
+                .body(new BytesRequestContent(corrupt))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        byte[] trailing = Arrays.copyOf(gzip.toByteArray(),
+                gzip.size() + 4);
+        response = client.POST(httpBinEndpoint + "/post")
+                .headers(headers -> headers.put("Content-Encoding", "gzip"))
+                .body(new BytesRequestContent(trailing))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        // the inner layer is not gzip; the outer layer must still be released
+        response = client.POST(httpBinEndpoint + "/post")
+                .headers(headers -> headers.put("Content-Encoding",
+                        "gzip, gzip"))
+                .body(new BytesRequestContent(gzip.toByteArray()))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(400);
+
+        response = client.POST(httpBinEndpoint + "/post")
+                .headers(headers -> headers.put("Content-Encoding", "zstd"))
+                .body(new BytesRequestContent(bytes))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(415);
+        assertThat(response.getHeaders().get("Accept-Encoding")).contains(
+                "gzip");
+
+        // a small body which inflates beyond the limit is rejected
+        ByteArrayOutputStream bomb = new ByteArrayOutputStream();
+        try (OutputStream os = new GZIPOutputStream(bomb)) {
+            byte[] zeros = new byte[64 * 1024];
+            for (long written = 0;
+                    written <= ContentDecoder.MAX_DECODED_SIZE;
+                    written += zeros.length) {
+                os.write(zeros);
+            }
+        }
+        response = client.POST(httpBinEndpoint + "/post")
+                .headers(headers -> headers.put("Content-Encoding", "gzip"))
+                .body(new BytesRequestContent(bomb.toByteArray()))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(413);
+    }
+
+    @Test
+    public void testResponseCompression() throws Exception {
+        String response = rawRequest(
+                "GET /get HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Accept-Encoding: gzip\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+        assertThat(response).startsWith("HTTP/1.1 200 ");
+        assertThat(response).containsIgnoringCase("Content-Encoding: gzip");
+
+        for (String line : List.of("DELETE /delete", "PATCH /patch",
+                "PUT /put")) {
+            response = rawRequest(
+                    line + " HTTP/1.1\r\n" +
+                    "Host: localhost\r\n" +
+                    "Accept-Encoding: gzip\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n");
+            assertThat(response).as(line).startsWith("HTTP/1.1 200 ");
+            assertThat(response).as(line).containsIgnoringCase(
+                    "Content-Encoding: gzip");
+        }
+
+        response = rawRequest(
+                "GET /get HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Connection: close\r\n" +
+                "\r\n");
+        assertThat(response).doesNotContainIgnoringCase("Content-Encoding");
+    }
+
+    @Test
+    public void testDigestAuth() throws Exception {
+        String uri = "/digest-auth/auth/user/passwd";
+        ContentResponse response = client.GET(httpBinEndpoint + uri);
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+        String nonce = getDigestNonce(response);
+
+        // second use of a nonce count is a replay
+        int[] expectedStatuses = {200, 401, 200};
+        String[] nonceCounts = {"00000001", "00000001", "00000002"};
+        String ha1 = md5Hex("user:httpbin:passwd");
+        String ha2 = md5Hex("GET:" + uri);
+        for (int i = 0; i < nonceCounts.length; ++i) {
+            String nc = nonceCounts[i];
+            String authorization = "Digest username=\"user\", " +
+                    "realm=\"httpbin\", nonce=\"" + nonce + "\", uri=\"" +
+                    uri + "\", qop=auth, nc=" + nc + ", cnonce=\"abc\", " +
+                    "response=\"" + md5Hex(ha1 + ":" + nonce + ":" + nc +
+                    ":abc:auth:" + ha2) + "\"";
+            response = client.newRequest(httpBinEndpoint + uri)
+                    .header("Authorization", authorization)
+                    .send();
+            assertThat(response.getStatus()).as("nc " + nc).isEqualTo(
+                    expectedStatuses[i]);
+        }
+
+        response = client.newRequest(httpBinEndpoint + uri)
+                .header("Authorization", "Digest username=\"user\", " +
+                        "realm=\"httpbin\", nonce=\"" + nonce + "\", " +
+                        "uri=\"" + uri + "\", response=\"00\"")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+
+        // RFC 2069 responses without qop would skip replay protection
+        nonce = getDigestNonce(response);
+        String authorization = "Digest username=\"user\", " +
+                "realm=\"httpbin\", nonce=\"" + nonce + "\", uri=\"" + uri +
+                "\", response=\"" + md5Hex(ha1 + ":" + nonce + ":" + ha2) +
+                "\"";
+        response = client.newRequest(httpBinEndpoint + uri)
+                .headers(headers -> headers.put("Authorization",
+                        authorization))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+
+        NonceCache nonces = new NonceCache(5, TimeUnit.MINUTES, 2);
+        String first = nonces.create();
+        nonces.create();
+        nonces.create();
+        assertThat(nonces.size()).isEqualTo(2);
+        assertThat(nonces.use(first, 1)).isEqualTo(NonceCache.Status.STALE);
+    }
+
+    @Test
+    public void testBearerAndBasicAuth() throws Exception {
+        ContentResponse response = client.GET(httpBinEndpoint + "/bearer");
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+        response = client.newRequest(httpBinEndpoint + "/bearer?token=abc")
+                .header("Authorization", "Bearer abc")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        response = client.newRequest(httpBinEndpoint + "/bearer?token=abc")
+                .header("Authorization", "Bearer abd")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+
+        response = client.newRequest(httpBinEndpoint +
+                "/basic-auth/user/passwd")
+                .header("Authorization", "Basic " + Base64.getEncoder()
+                        .encodeToString("user:passwd".getBytes(
+                                StandardCharsets.UTF_8)))
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+        response = client.newRequest(httpBinEndpoint +
+                "/basic-auth/user/passwd")
+                .header("Authorization", "Basic !!!")
+                .send();
+        assertThat(response.getStatus()).as("status").isEqualTo(401);
+    }
+
+    @Test
+    public void testSigV4() throws Exception {
+        String amzDate = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+                .withZone(ZoneOffset.UTC).format(Instant.now());
+        String scope = amzDate.substring(0, 8) + "/us-east-1/s3/aws4_request";
+        String path = "/sigv4/AKID/SECRET/bucket/key";
+        String payloadHash = Hex.encodeHexString(MessageDigest.getInstance(
+                "SHA-256").digest(new byte[0]));
+        String canonicalRequest = "GET\n" + path + "\na=1&b=2\n" +
+                "host:127.0.0.1:" + httpBin.getPort() + "\n" +
+                "x-amz-content-sha256:" + payloadHash + "\n" +
+                "x-amz-date:" + amzDate + "\n\n" +
+                "host;x-amz-content-sha256;x-amz-date\n" + payloadHash;
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope +
+                "\n" + Hex.encodeHexString(MessageDigest.getInstance(
+                        "SHA-256").digest(canonicalRequest.getBytes(
+                                StandardCharsets.UTF_8)));
+        byte[] key = "AWS4SECRET".getBytes(StandardCharsets.UTF_8);
+        for (String field : scope.split("/")) {
+            key = hmacSha256(key, field);
+        }
+        String signature = Hex.encodeHexString(hmacSha256(key, stringToSign));
+
+        ContentResponse response = sendSigV4(path + "?b=2&a=1", amzDate,
+                payloadHash, scope, signature);
+        assertThat(response.getStatus()).as("status").isEqualTo(200);
+
+        response = sendSigV4(path + "?b=2&a=1", amzDate, payloadHash, scope,
+                (signature.charAt(0) == '0' ? "1" : "0") +
+                signature.substring(1));
+        assertThat(response.getStatus()).as("status").isEqualTo(403);
+        JSONObject object = new JSONObject(response.getContentAsString());
+        assertThat(object.getString("error")).isEqualTo(
+                "SignatureDoesNotMatch");
+        assertThat(object.getString("canonicalRequest")).isEqualTo(
+                canonicalRequest);
+    }
+
+    private ContentResponse sendSigV4(String pathAndQuery, String amzDate,
+            String payloadHash, String scope, String signature)
+            throws Exception {
+        return client.newRequest(httpBinEndpoint + pathAndQuery)
+                .header("X-Amz-Date", amzDate)
+                .header("X-Amz-Content-SHA256", payloadHash)
+                .header("Authorization", "AWS4-HMAC-SHA256 Credential=AKID/" +
+                        scope + ", SignedHeaders=host;x-amz-content-sha256;" +
+                        "x-amz-date, Signature=" + signature)
+                .send();
+    }
+
+    private static String getDigestNonce(ContentResponse response) {
+        Matcher matcher = Pattern.compile("nonce=\"([^\"]+)\"").matcher(
+                response.getHeaders().get("WWW-Authenticate"));
+        assertThat(matcher.find()).isTrue();
+        return matcher.group(1);
+    }
+
+    private static String md5Hex(String input) throws Exception {
+        return Hex.encodeHexString(MessageDigest.getInstance("MD5").digest(
+                input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] hmacSha256(byte[] key, String input)
+            throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String rawRequest(String request) throws Exception {
+        try (Socket socket = new Socket(httpBinEndpoint.getHost(),
+                httpBinEndpoint.getPort())) {
+            OutputStream os = socket.getOutputStream();
+            os.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            os.flush();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Utils.copy(socket.getInputStream(), baos);
+            return baos.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
 }